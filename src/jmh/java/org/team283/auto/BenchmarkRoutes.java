@@ -0,0 +1,51 @@
+package org.team283.auto;
+
+import java.util.Random;
+
+/**
+ * Builds routes that look like real recordings, for the benchmarks to read and write
+ * Axes drift a little each measurement and often sit still, buttons are held for seconds at a time, and the robot loop runs about every 20ms
+ */
+class BenchmarkRoutes
+{
+	/**
+	 * @param length - number of measurements
+	 * @param seed - the same seed always gives the same route
+	 * @return - a route in the default schema, with every header field filled in
+	 */
+	static RouteData recording(int length, long seed)
+	{
+		Random random = new Random(seed);
+		RouteData data = new RouteData();
+		data.robot = "napalm";
+		data.title = "benchmark";
+		data.description = "generated for benchmarking";
+		data.role = "driver";
+		data.version = 1;
+		data.lastModified = 1_600_000_000_000L;
+		data.timeline = new RouteTimeline(length);
+
+		double[] analogValues = new double[RouteData.analogChannelCount];
+		int digitalMask = 0;
+		for (int i = 0; i < length; i++)
+		{
+			for (int a = 0; a < analogValues.length; a++)
+			{
+				//Sticks are let go about half the time, and otherwise moved a little at a time
+				if (random.nextInt(4) == 0)
+				{
+					analogValues[a] = Math.max(-1, Math.min(1, analogValues[a] + random.nextGaussian() * 0.05));
+				}
+			}
+			//A button changes about once every 50 measurements
+			if (random.nextInt(50) == 0)
+			{
+				digitalMask ^= 1 << random.nextInt(RouteData.digitalChannelCount);
+			}
+			//20ms loop, give or take a couple of ms of jitter
+			long spacingNanos = 20 * RouteTimeline.NANOS_PER_MS + (long)(random.nextGaussian() * 500_000);
+			data.timeline.addNanos(analogValues, digitalMask, spacingNanos);
+		}
+		return data;
+	}
+}
@@ -0,0 +1,132 @@
+package org.team283.auto;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Size of a route as legacy json, plain binary and encoded, and how fast each decodes
+ * Sizes are printed once at setup. Each benchmark decodes the whole route, so measurements per second is length / the reported time
+ *
+ * Run with ./gradlew jmh -PjmhInclude=RouteCodec
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RouteCodecBenchmark
+{
+	/** Number of measurements. 750 is a 15 second autonomous, 20000 is close to 7 minutes of practice */
+	@Param({"750", "20000"})
+	public int length;
+
+	/** Folder the route files are written in */
+	private File folder;
+
+	/** The route as a legacy json file, kept in memory so decodeJson() isn't timing the file system */
+	private byte[] json;
+
+	/** Route saved as plain binary */
+	private File binaryFile;
+
+	/** Route saved encoded */
+	private File encodedFile;
+
+	/** The encoded file, mapped once and walked by streamEncoded() */
+	private StreamingPhantomRoute streamed;
+
+	@Setup
+	public void setup() throws IOException
+	{
+		folder = Files.createTempDirectory("route-benchmark").toFile();
+		RouteData data = BenchmarkRoutes.recording(length, 283);
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (Writer writer = new OutputStreamWriter(bytes, StandardCharsets.UTF_8))
+		{
+			LegacyRouteJson.write(data, writer);
+		}
+		json = bytes.toByteArray();
+		binaryFile = new File(folder, "binary." + PhantomRoute.EXTENSION);
+		encodedFile = new File(folder, "encoded." + PhantomRoute.EXTENSION);
+		long binarySize = BinaryRouteFile.write(data, binaryFile, false);
+		long encodedSize = BinaryRouteFile.write(data, encodedFile, true);
+		streamed = new StreamingPhantomRoute(encodedFile.getAbsolutePath());
+
+		System.out.println();
+		System.out.println(length + " measurements: json " + json.length + " bytes, binary " + binarySize + " bytes, encoded " + encodedSize + " bytes");
+	}
+
+	@TearDown
+	public void tearDown()
+	{
+		for (File file : folder.listFiles())
+		{
+			file.delete();
+		}
+		folder.delete();
+	}
+
+	@Benchmark
+	public RouteData decodeJson() throws IOException
+	{
+		try (Reader reader = new InputStreamReader(new ByteArrayInputStream(json), StandardCharsets.UTF_8))
+		{
+			return LegacyRouteJson.read(reader);
+		}
+	}
+
+	@Benchmark
+	public RouteData decodeBinary() throws IOException
+	{
+		return BinaryRouteFile.read(binaryFile);
+	}
+
+	@Benchmark
+	public RouteData decodeEncoded() throws IOException
+	{
+		return BinaryRouteFile.read(encodedFile);
+	}
+
+	/**
+	 * Reads every measurement in order, like playback does, without unpacking the route onto the heap
+	 * @return - the values read, so none of the reads can be skipped
+	 */
+	@Benchmark
+	public double streamEncoded()
+	{
+		double sum = 0;
+		for (int i = 0; i < length; i++)
+		{
+			sum += streamed.getAnalog(0, i);
+			if (streamed.getDigital(0, i))
+			{
+				sum++;
+			}
+		}
+		return sum;
+	}
+}
@@ -0,0 +1,109 @@
+package org.team283.auto;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Loading and saving a whole route as legacy json and as a binary route file
+ * Saves go through DurableFile like PhantomRoute.save() does, so they include forcing the file to disk
+ *
+ * Run with ./gradlew jmh -PjmhInclude=RouteFile
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RouteFileBenchmark
+{
+	/** Number of measurements. 750 is a 15 second autonomous, 20000 is close to 7 minutes of practice */
+	@Param({"750", "20000"})
+	public int length;
+
+	/** Folder the route files are written in */
+	private File folder;
+
+	/** Route that gets saved */
+	private RouteData data;
+
+	/** Route saved as json, read by loadJson() and rewritten by saveJson() */
+	private File jsonFile;
+
+	/** Route saved as binary, read by loadBinary() and rewritten by saveBinary() */
+	private File binaryFile;
+
+	@Setup
+	public void setup() throws IOException
+	{
+		folder = Files.createTempDirectory("route-benchmark").toFile();
+		data = BenchmarkRoutes.recording(length, 283);
+		jsonFile = new File(folder, "json." + PhantomRoute.EXTENSION);
+		binaryFile = new File(folder, "binary." + PhantomRoute.EXTENSION);
+		saveJson();
+		saveBinary();
+	}
+
+	@TearDown
+	public void tearDown()
+	{
+		for (File file : folder.listFiles())
+		{
+			file.delete();
+		}
+		folder.delete();
+	}
+
+	@Benchmark
+	public RouteData loadJson() throws IOException
+	{
+		try (Reader reader = new InputStreamReader(new FileInputStream(jsonFile), StandardCharsets.UTF_8))
+		{
+			return LegacyRouteJson.read(reader);
+		}
+	}
+
+	@Benchmark
+	public RouteData loadBinary() throws IOException
+	{
+		return BinaryRouteFile.read(binaryFile);
+	}
+
+	@Benchmark
+	public long saveJson() throws IOException
+	{
+		return DurableFile.replace(jsonFile, (channel) ->
+		{
+			Writer writer = new BufferedWriter(Channels.newWriter(channel, StandardCharsets.UTF_8));
+			LegacyRouteJson.write(data, writer);
+		});
+	}
+
+	@Benchmark
+	public long saveBinary() throws IOException
+	{
+		return BinaryRouteFile.write(data, binaryFile);
+	}
+}
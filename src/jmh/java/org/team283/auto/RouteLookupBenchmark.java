@@ -0,0 +1,95 @@
+package org.team283.auto;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of finding the measurement for a playback time, as routes get longer
+ * indexFromTimeNanos() should stay close to flat across lengths, while linearWalk, the way lookups used to be done, grows with the route
+ *
+ * Run with ./gradlew jmh -PjmhInclude=RouteLookup
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RouteLookupBenchmark
+{
+	/** Number of measurements in the route. 750 is 15 seconds at 20ms, the rest are longer routes */
+	@Param({"750", "7500", "75000"})
+	public int length;
+
+	/** Number of looked up times. A power of 2, so picking the next one is a mask */
+	private final static int TIME_COUNT = 1024;
+
+	/** Route looked up in. Measurements 20ms apart, give or take a couple of ms like a real robot loop */
+	private RouteTimeline timeline;
+
+	/** Times to look up in ns, spread over the whole route so late lookups are counted as well as early ones */
+	private long[] times;
+
+	/** Which of the times is looked up next */
+	private int next;
+
+	@Setup
+	public void setup()
+	{
+		Random random = new Random(283);
+		timeline = new RouteTimeline(length);
+		double[] analogValues = new double[RouteData.analogChannelCount];
+		for (int i = 0; i < length; i++)
+		{
+			timeline.addNanos(analogValues, 0, (18 + random.nextInt(5)) * RouteTimeline.NANOS_PER_MS);
+		}
+		long end = timeline.getTimestampNanos(length - 1);
+		times = new long[TIME_COUNT];
+		for (int i = 0; i < TIME_COUNT; i++)
+		{
+			times[i] = (long)(random.nextDouble() * end);
+		}
+	}
+
+	@Benchmark
+	public int binarySearch()
+	{
+		next = (next + 1) & (TIME_COUNT - 1);
+		return timeline.indexFromTimeNanos(times[next]);
+	}
+
+	/**
+	 * Adds up spacing values from the start until the time is reached, which is how indexFromTime() worked before the timestamps were kept
+	 * @return - the same index as binarySearch()
+	 */
+	@Benchmark
+	public int linearWalk()
+	{
+		next = (next + 1) & (TIME_COUNT - 1);
+		long time = times[next];
+		if (time <= 0)
+		{
+			return 0;
+		}
+		long total = 0;
+		int index = 0;
+		while (index < length && total < time)
+		{
+			total += timeline.getSpacingNanos(index);
+			index++;
+		}
+		return Math.min(index, length);
+	}
+}
@@ -0,0 +1,148 @@
+package org.team283.auto;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * One thread offering frames to a SampleRing while another drains them, like the recording scheduler and the robot thread
+ * The throughput group gives calls per microsecond on each side, with frames and drops counted separately since a drain can find nothing waiting.
+ * The latency group samples single offer() and drain() calls, so the report has their p99 and p99.99 tails
+ *
+ * Needs at least two cores to mean anything, otherwise the threads just take turns
+ * Run with ./gradlew jmh -PjmhInclude=SampleRing
+ */
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SampleRingBenchmark
+{
+	/**
+	 * The ring both threads share
+	 */
+	@State(Scope.Group)
+	public static class Ring
+	{
+		/** Slots in the ring. 64 is about a second of a 60Hz recording */
+		@Param({"64", "1024"})
+		public int capacity;
+
+		/** Most frames taken by one drain() call */
+		@Param({"16"})
+		public int batch;
+
+		/** New for every iteration, so overflows and the high water mark start over */
+		SampleRing ring;
+
+		@Setup(Level.Iteration)
+		public void setup()
+		{
+			ring = new SampleRing(capacity, RouteData.analogChannelCount);
+		}
+	}
+
+	/**
+	 * Frames that actually made it through, and frames dropped because the ring was full. Reported per second, next to the call rates
+	 */
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	public static class Frames
+	{
+		/** Frames handed to the consumer's sink */
+		public long drained;
+
+		/** Frames the producer couldn't offer */
+		public long dropped;
+
+		@Setup(Level.Iteration)
+		public void clear()
+		{
+			drained = 0;
+			dropped = 0;
+		}
+	}
+
+	/**
+	 * What the producer offers. A frame's values don't change the cost of copying it
+	 */
+	@State(Scope.Thread)
+	public static class Producer
+	{
+		/** Analog values of every frame */
+		final double[] analogValues = new double[RouteData.analogChannelCount];
+	}
+
+	/**
+	 * Where the consumer's frames go. Made once so draining doesn't create a sink every call, like PhantomJoystick
+	 */
+	@State(Scope.Thread)
+	public static class Consumer
+	{
+		/** Adds up what the sink is given, so reading the frames can't be optimized away */
+		long checksum;
+
+		/** Receives drained frames */
+		final SampleRing.Sink sink = (analogValues, digitalMask, elapsedNanos) -> checksum += elapsedNanos + digitalMask + (long)analogValues[0];
+	}
+
+	@Benchmark
+	@Group("throughput")
+	@GroupThreads(1)
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public boolean offer(Ring ring, Producer producer, Frames frames)
+	{
+		boolean offered = ring.ring.offer(producer.analogValues, 0, System.nanoTime());
+		if (!offered)
+		{
+			frames.dropped++;
+		}
+		return offered;
+	}
+
+	@Benchmark
+	@Group("throughput")
+	@GroupThreads(1)
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public int drain(Ring ring, Consumer consumer, Frames frames)
+	{
+		int drained = ring.ring.drain(consumer.sink, ring.batch);
+		frames.drained += drained;
+		return drained;
+	}
+
+	@Benchmark
+	@Group("latency")
+	@GroupThreads(1)
+	@BenchmarkMode(Mode.SampleTime)
+	@OutputTimeUnit(TimeUnit.NANOSECONDS)
+	public boolean offerLatency(Ring ring, Producer producer)
+	{
+		return ring.ring.offer(producer.analogValues, 0, System.nanoTime());
+	}
+
+	@Benchmark
+	@Group("latency")
+	@GroupThreads(1)
+	@BenchmarkMode(Mode.SampleTime)
+	@OutputTimeUnit(TimeUnit.NANOSECONDS)
+	public int drainLatency(Ring ring, Consumer consumer)
+	{
+		return ring.ring.drain(consumer.sink, ring.batch);
+	}
+}
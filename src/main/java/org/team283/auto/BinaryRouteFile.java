@@ -0,0 +1,549 @@
+package org.team283.auto;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads and writes the binary .route layout
+ *
+ * Layout, all little-endian:
+ * +--------+---------------------------------------------------------------+
+ * | Offset | Field                                                         |
+ * +--------+---------------------------------------------------------------+
+ * |   0    | magic "PHRT"                                                  |
+ * |   4    | u16 format version                                            |
+ * |   6    | u16 flags, bit 0 set when the columns are encoded,            |
+ * |        |   bit 1 set when a schema follows the strings                 |
+ * |   8    | u16 analog channel count                                      |
+ * |  10    | u16 digital channel count                                     |
+ * |  12    | i32 measurement count (n)                                     |
+ * |  16    | i64 lastModified                                              |
+ * |  24    | i32 route version                                             |
+ * |  28    | i32 offset of the first column                                |
+ * |  32    | robot, title, description, role: i32 byte count + UTF-8 each  |
+ * |  ...   | schema: u16 axis, button and POV counts, then u16 inputs of   |
+ * |        |   the axes, then the buttons, then the POVs. An input is the  |
+ * |        |   device in the high byte and the number in the low byte      |
+ * |  ...   | time range: i64 ns of the first and of the last measurement   |
+ * |  ...   | zero padding up to a multiple of 8                            |
+ * +--------+---------------------------------------------------------------+
+ * | Columns, starting at the column offset                                 |
+ * |   i64[n] timestamps in ns, then f64[n] for each analog channel,        |
+ * |   then i32[n] digital bitmasks                                         |
+ * | or, when encoded, one RouteCodec stream to the end of the file         |
+ * +------------------------------------------------------------------------+
+ * Spacing is the difference of neighbouring timestamps, so it isn't stored. An encoded stream's spacing is in microseconds
+ *
+ * The 8-byte columns come first and the header is padded, so every column is aligned and can be read in place (see the column offset functions)
+ * A schema is only written when it isn't the default. Files without one have the default schema, or as many axes and buttons as they have channels
+ * The time range lets a route be described without reading its columns
+ *
+ * An instance of this class is a parsed header. The columns are read separately, or not at all
+ */
+public class BinaryRouteFile
+{
+	/** First bytes of every binary route file */
+	public final static byte[] MAGIC = {'P', 'H', 'R', 'T'};
+	
+	/** Newest format version this class reads. Bump when the layout changes */
+	public final static int FORMAT_VERSION = 1;
+	
+	/** Set in the flags when the columns are a RouteCodec stream */
+	public final static int FLAG_ENCODED = 1;
+	
+	/** Set in the flags when a schema follows the strings */
+	public final static int FLAG_SCHEMA = 2;
+	
+	/** ns in one unit of an encoded stream's spacing. Whole microseconds keep the varints short */
+	public final static long ENCODED_UNIT_NANOS = 1_000;
+	
+	/** Size of the fixed part of the header, before the strings */
+	private final static int FIXED_HEADER_SIZE = 32;
+	
+	/** Size of the chunks the columns are streamed through */
+	private final static int CHUNK_SIZE = 64 * 1024;
+	
+	/** Format version of the file this header was read from */
+	public int formatVersion;
+	
+	/** Flags of the file this header was read from */
+	public int flags;
+	
+	/** Number of analog columns in the file */
+	public int analogChannelCount;
+	
+	/** Number of digital channels packed into each bitmask */
+	public int digitalChannelCount;
+	
+	/** Number of measurements in each column */
+	public int length;
+	
+	/** Which joystick inputs the columns hold. Also set on routeData */
+	public ChannelSchema schema;
+	
+	/** Offset from the start of the file to the first column */
+	public int dataOffset;
+	
+	/** Timestamp of the first measurement in ns */
+	public long firstTimestampNanos;
+	
+	/** Timestamp of the last measurement in ns */
+	public long lastTimestampNanos;
+	
+	/** Route description read from the header. The timeline is left null */
+	public RouteData routeData;
+	
+	/**
+	 * @param bytes - bytes read from the start of a file
+	 * @param count - how many of those bytes are valid
+	 * @return - true if the bytes start with the binary route magic number
+	 */
+	public static boolean hasMagic(byte[] bytes, int count)
+	{
+		if (count < MAGIC.length)
+		{
+			return false;
+		}
+		for (int i = 0; i < MAGIC.length; i++)
+		{
+			if (bytes[i] != MAGIC[i])
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * @return - true if the columns are a RouteCodec stream, which can't be read in place
+	 */
+	public boolean isEncoded()
+	{
+		return (flags & FLAG_ENCODED) != 0;
+	}
+	
+	/**
+	 * @return - offset of the timestamp column
+	 */
+	public long timestampOffset()
+	{
+		return dataOffset;
+	}
+	
+	/**
+	 * @param channel - analog channel
+	 * @return - offset of that analog channel's column
+	 */
+	public long analogOffset(int channel)
+	{
+		return timestampOffset() + (long)Long.BYTES * length + (long)Double.BYTES * length * channel;
+	}
+	
+	/**
+	 * @return - offset of the digital bitmask column
+	 */
+	public long digitalOffset()
+	{
+		return analogOffset(analogChannelCount);
+	}
+	
+	/**
+	 * @return - total size of a file with this header
+	 */
+	public long fileSize()
+	{
+		return digitalOffset() + (long)Integer.BYTES * length;
+	}
+	
+	/**
+	 * Reads only the header of a binary route file
+	 * @param channel - channel positioned anywhere. Left positioned at an unspecified point
+	 * @return - the parsed header
+	 * @throws IOException - if the file can't be read or isn't a binary route file
+	 */
+	public static BinaryRouteFile readHeader(FileChannel channel) throws IOException
+	{
+		ByteBuffer fixed = readFully(channel, 0, FIXED_HEADER_SIZE);
+		if (!hasMagic(fixed.array(), fixed.limit()))
+		{
+			throw new IOException("Not a binary route file");
+		}
+		fixed.position(MAGIC.length);
+		
+		BinaryRouteFile header = new BinaryRouteFile();
+		header.formatVersion = Short.toUnsignedInt(fixed.getShort());
+		if (header.formatVersion > FORMAT_VERSION)
+		{
+			throw new IOException("Route file format version " + header.formatVersion + " is newer than this library (" + FORMAT_VERSION + ")");
+		}
+		header.flags = Short.toUnsignedInt(fixed.getShort());
+		header.analogChannelCount = Short.toUnsignedInt(fixed.getShort());
+		header.digitalChannelCount = Short.toUnsignedInt(fixed.getShort());
+		header.length = fixed.getInt();
+		
+		header.routeData = new RouteData();
+		header.routeData.lastModified = fixed.getLong();
+		header.routeData.version = fixed.getInt();
+		header.dataOffset = fixed.getInt();
+		
+		//The strings sit between the fixed header and the columns
+		ByteBuffer strings = readFully(channel, FIXED_HEADER_SIZE, header.dataOffset - FIXED_HEADER_SIZE);
+		header.routeData.robot = getString(strings);
+		header.routeData.title = getString(strings);
+		header.routeData.description = getString(strings);
+		header.routeData.role = getString(strings);
+		if ((header.flags & FLAG_SCHEMA) != 0)
+		{
+			header.schema = getSchema(strings);
+			if (header.schema.getAnalogChannelCount() != header.analogChannelCount || header.schema.getDigitalChannelCount() != header.digitalChannelCount)
+			{
+				throw new IOException("Route file schema (" + header.schema + ") does not match its " + header.analogChannelCount + " analog and " + header.digitalChannelCount + " digital channels");
+			}
+		}
+		else
+		{
+			header.schema = ChannelSchema.withCounts(header.analogChannelCount, header.digitalChannelCount);
+		}
+		header.routeData.schema = header.schema;
+		header.firstTimestampNanos = strings.getLong();
+		header.lastTimestampNanos = strings.getLong();
+		return header;
+	}
+	
+	/**
+	 * Finds the time from the first measurement to the last from the header's time range, without reading the columns
+	 * @return - ms from the first measurement to the last, 0 if there are none
+	 */
+	public long getDuration()
+	{
+		if (length == 0)
+		{
+			return 0;
+		}
+		//Rounded the same way as PhantomRoute.getDuration()
+		return RouteTimeline.toMillis(lastTimestampNanos) - RouteTimeline.toMillis(firstTimestampNanos);
+	}
+	
+	/**
+	 * Reads a whole binary route file onto the heap
+	 * @param file - file to read
+	 * @return - the route, with its timeline
+	 * @throws IOException - if the file can't be read or isn't a binary route file
+	 */
+	public static RouteData read(File file) throws IOException
+	{
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ))
+		{
+			BinaryRouteFile header = readHeader(channel);
+			int length = header.length;
+			if (header.isEncoded())
+			{
+				RouteData routeData = header.routeData;
+				routeData.timeline = RouteCodec.decode(readFully(channel, header.dataOffset, (int)(channel.size() - header.dataOffset)), length, header.schema, ENCODED_UNIT_NANOS);
+				return routeData;
+			}
+			
+			//Columns are sized exactly, with room for at least one value so the timeline can still be appended to
+			long[] timestamps = new long[Math.max(length, 1)];
+			double[][] analog = new double[header.analogChannelCount][Math.max(length, 1)];
+			int[] digital = new int[Math.max(length, 1)];
+			
+			ByteBuffer buffer = ByteBuffer.allocateDirect(CHUNK_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+			channel.position(header.timestampOffset());
+			for (int i = 0; i < length;)
+			{
+				int count = Math.min(length - i, CHUNK_SIZE / Long.BYTES);
+				fill(channel, buffer, count * Long.BYTES);
+				buffer.asLongBuffer().get(timestamps, i, count);
+				i += count;
+			}
+			for (int c = 0; c < header.analogChannelCount; c++)
+			{
+				channel.position(header.analogOffset(c));
+				for (int i = 0; i < length;)
+				{
+					int count = Math.min(length - i, CHUNK_SIZE / Double.BYTES);
+					fill(channel, buffer, count * Double.BYTES);
+					buffer.asDoubleBuffer().get(analog[c], i, count);
+					i += count;
+				}
+			}
+			channel.position(header.digitalOffset());
+			for (int i = 0; i < length;)
+			{
+				int count = Math.min(length - i, CHUNK_SIZE / Integer.BYTES);
+				fill(channel, buffer, count * Integer.BYTES);
+				buffer.asIntBuffer().get(digital, i, count);
+				i += count;
+			}
+			
+			RouteData routeData = header.routeData;
+			routeData.timeline = new RouteTimeline(analog, digital, timestamps, length);
+			return routeData;
+		}
+	}
+	
+	/**
+	 * Writes a whole route to a binary route file with plain columns, replacing anything that was there
+	 * @param routeData - route to write
+	 * @param file - destination
+	 * @return - size of the file in bytes
+	 * @throws IOException - if the file can't be written
+	 */
+	public static long write(RouteData routeData, File file) throws IOException
+	{
+		return write(routeData, file, false);
+	}
+	
+	/**
+	 * Writes a whole route to a binary route file, replacing anything that was there
+	 * The file is replaced atomically, so a failed or interrupted write leaves the old one. See DurableFile
+	 * @param routeData - route to write
+	 * @param file - destination
+	 * @param encoded - true to write the columns as a RouteCodec stream, which is smaller but can't be read in place. Axes are quantized
+	 * @return - size of the file in bytes
+	 * @throws IOException - if the file can't be written
+	 */
+	public static long write(RouteData routeData, File file, boolean encoded) throws IOException
+	{
+		return DurableFile.replace(file, (channel) -> write(routeData, channel, encoded));
+	}
+	
+	/**
+	 * Writes a whole route as a binary route file
+	 * @param routeData - route to write
+	 * @param channel - empty file to write to, positioned at its start. Left open
+	 * @param encoded - true to write the columns as a RouteCodec stream
+	 * @throws IOException - if the write fails
+	 */
+	public static void write(RouteData routeData, FileChannel channel, boolean encoded) throws IOException
+	{
+		RouteTimeline timeline = routeData.timeline;
+		ChannelSchema schema = routeData.schema;
+		//Default schema files leave it out
+		boolean writeSchema = !ChannelSchema.DEFAULT.equals(schema);
+		int flags = (encoded ? FLAG_ENCODED : 0) | (writeSchema ? FLAG_SCHEMA : 0);
+		int length = timeline.length();
+		if (timeline.getAnalogChannelCount() != schema.getAnalogChannelCount())
+		{
+			throw new IllegalArgumentException("Route has " + timeline.getAnalogChannelCount() + " analog columns but its schema has " + schema.getAnalogChannelCount());
+		}
+		
+		byte[][] strings = {
+			toBytes(routeData.robot),
+			toBytes(routeData.title),
+			toBytes(routeData.description),
+			toBytes(routeData.role),
+		};
+		int headerSize = FIXED_HEADER_SIZE;
+		for (byte[] string : strings)
+		{
+			headerSize += Integer.BYTES + (string == null ? 0 : string.length);
+		}
+		if (writeSchema)
+		{
+			headerSize += Short.BYTES * (3 + schema.getAnalogChannelCount() + schema.getDigitalChannelCount());
+		}
+		headerSize += 2 * Long.BYTES;
+		//Pad so the 8-byte columns start aligned
+		int dataOffset = (headerSize + 7) & ~7;
+		
+		ByteBuffer header = ByteBuffer.allocate(dataOffset).order(ByteOrder.LITTLE_ENDIAN);
+		header.put(MAGIC);
+		header.putShort((short)FORMAT_VERSION);
+		header.putShort((short)flags);
+		header.putShort((short)schema.getAnalogChannelCount());
+		header.putShort((short)schema.getDigitalChannelCount());
+		header.putInt(length);
+		header.putLong(routeData.lastModified);
+		header.putInt(routeData.version);
+		header.putInt(dataOffset);
+		for (byte[] string : strings)
+		{
+			header.putInt(string == null ? -1 : string.length);
+			if (string != null)
+			{
+				header.put(string);
+			}
+		}
+		if (writeSchema)
+		{
+			putSchema(header, schema);
+		}
+		header.putLong((length == 0) ? 0 : timeline.getTimestampNanos(0));
+		header.putLong((length == 0) ? 0 : timeline.getTimestampNanos(length - 1));
+		header.clear();
+		
+		writeFully(channel, header);
+		
+		if (encoded)
+		{
+			ByteBuffer stream = ByteBuffer.allocate(RouteCodec.maxEncodedSize(length, schema));
+			RouteCodec.encode(timeline, schema, ENCODED_UNIT_NANOS, stream);
+			stream.flip();
+			writeFully(channel, stream);
+			return;
+		}
+		
+		ByteBuffer buffer = ByteBuffer.allocateDirect(CHUNK_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		long[] timestamps = timeline.timestampColumn();
+		for (int i = 0; i < length;)
+		{
+			int count = Math.min(length - i, CHUNK_SIZE / Long.BYTES);
+			buffer.clear();
+			buffer.asLongBuffer().put(timestamps, i, count);
+			buffer.limit(count * Long.BYTES);
+			writeFully(channel, buffer);
+			i += count;
+		}
+		for (int c = 0; c < schema.getAnalogChannelCount(); c++)
+		{
+			double[] analog = timeline.analogColumn(c);
+			for (int i = 0; i < length;)
+			{
+				int count = Math.min(length - i, CHUNK_SIZE / Double.BYTES);
+				buffer.clear();
+				buffer.asDoubleBuffer().put(analog, i, count);
+				buffer.limit(count * Double.BYTES);
+				writeFully(channel, buffer);
+				i += count;
+			}
+		}
+		int[] digital = timeline.digitalColumn();
+		for (int i = 0; i < length;)
+		{
+			int count = Math.min(length - i, CHUNK_SIZE / Integer.BYTES);
+			buffer.clear();
+			buffer.asIntBuffer().put(digital, i, count);
+			buffer.limit(count * Integer.BYTES);
+			writeFully(channel, buffer);
+			i += count;
+		}
+	}
+	
+	/**
+	 * @param buffer - positioned at a string written by write()
+	 * @return - the string, or null if null was written
+	 */
+	private static String getString(ByteBuffer buffer)
+	{
+		int byteCount = buffer.getInt();
+		if (byteCount < 0)
+		{
+			return null;
+		}
+		String string = new String(buffer.array(), buffer.position(), byteCount, StandardCharsets.UTF_8);
+		buffer.position(buffer.position() + byteCount);
+		return string;
+	}
+	
+	/**
+	 * @param buffer - positioned at a schema written by putSchema()
+	 * @return - the schema
+	 */
+	private static ChannelSchema getSchema(ByteBuffer buffer)
+	{
+		int[][] numbers = new int[3][];
+		for (int n = 0; n < numbers.length; n++)
+		{
+			numbers[n] = new int[Short.toUnsignedInt(buffer.getShort())];
+		}
+		for (int[] inputs : numbers)
+		{
+			for (int i = 0; i < inputs.length; i++)
+			{
+				inputs[i] = Short.toUnsignedInt(buffer.getShort());
+			}
+		}
+		return new ChannelSchema(numbers[0], numbers[1], numbers[2]);
+	}
+	
+	/**
+	 * Writes the axis, button and POV counts, then the inputs of each
+	 * @param buffer - where the schema goes
+	 * @param schema - schema to write
+	 */
+	private static void putSchema(ByteBuffer buffer, ChannelSchema schema)
+	{
+		int axisCount = schema.getAxisCount();
+		int povCount = schema.getAnalogChannelCount() - axisCount;
+		buffer.putShort((short)axisCount);
+		buffer.putShort((short)schema.getDigitalChannelCount());
+		buffer.putShort((short)povCount);
+		for (int c = 0; c < axisCount; c++)
+		{
+			buffer.putShort((short)schema.analogInput(c));
+		}
+		for (int d = 0; d < schema.getDigitalChannelCount(); d++)
+		{
+			buffer.putShort((short)schema.buttonInput(d));
+		}
+		for (int c = axisCount; c < schema.getAnalogChannelCount(); c++)
+		{
+			buffer.putShort((short)schema.analogInput(c));
+		}
+	}
+	
+	/**
+	 * @param string - string to encode, may be null
+	 * @return - UTF-8 bytes, or null for a null string
+	 */
+	private static byte[] toBytes(String string)
+	{
+		return (string == null) ? null : string.getBytes(StandardCharsets.UTF_8);
+	}
+	
+	/**
+	 * @param channel - channel to read from
+	 * @param position - offset in the file to read from
+	 * @param size - number of bytes to read
+	 * @return - little-endian heap buffer holding exactly those bytes
+	 * @throws IOException - if the file ends early
+	 */
+	private static ByteBuffer readFully(FileChannel channel, long position, int size) throws IOException
+	{
+		ByteBuffer buffer = ByteBuffer.allocate(Math.max(size, 0)).order(ByteOrder.LITTLE_ENDIAN);
+		channel.position(position);
+		fill(channel, buffer, buffer.capacity());
+		return buffer;
+	}
+	
+	/**
+	 * Reads the next size bytes from the channel into the start of the buffer, and flips it for reading
+	 * @param channel - channel to read from
+	 * @param buffer - buffer with at least size bytes of capacity
+	 * @param size - number of bytes to read
+	 * @throws IOException - if the file ends early
+	 */
+	private static void fill(FileChannel channel, ByteBuffer buffer, int size) throws IOException
+	{
+		buffer.clear();
+		buffer.limit(size);
+		while (buffer.hasRemaining())
+		{
+			if (channel.read(buffer) == -1)
+			{
+				throw new IOException("Route file ended early");
+			}
+		}
+		buffer.flip();
+	}
+	
+	/**
+	 * @param channel - channel to write to
+	 * @param buffer - bytes from position to limit get written
+	 * @throws IOException - if the write fails
+	 */
+	private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException
+	{
+		while (buffer.hasRemaining())
+		{
+			channel.write(buffer);
+		}
+	}
+}
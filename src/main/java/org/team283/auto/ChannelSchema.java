@@ -0,0 +1,436 @@
+package org.team283.auto;
+
+import java.util.Arrays;
+
+import edu.wpi.first.wpilibj.Joystick;
+
+/**
+ * Which inputs of a joystick a route records, and where each one is stored
+ *
+ * A route stores one analog column per recorded axis, then one per recorded POV hat, and one bit of its digital bitmask per
+ * recorded button. Recording and playback only touch what's listed here, so a route that only uses two axes and three
+ * buttons costs two columns and three bits per measurement instead of sixteen channels
+ *
+ * Numbers are the ones passed to Joystick: axes and POVs count from 0, buttons count from 1
+ * POV columns hold the hat angle in degrees, or -1 when it isn't pressed, and are never quantized or interpolated
+ *
+ * A schema can span several joysticks, e.g. driver and operator, so they're recorded in the same cycle into one timeline and share
+ * its clock. Each input then belongs to a device: input(device, number) is what the constructor takes, and a plain number is on device 0.
+ * combine() builds one from a schema per device. The bitmask still holds at most MAX_BUTTONS buttons across all devices
+ *
+ * Example Usage:
+ *  ChannelSchema schema = new ChannelSchema(new int[] {1, 4}, new int[] {1, 2, 6}, new int[] {0});
+ *  schema.getAnalogChannelCount();  //3: axis 1, axis 4 and POV 0
+ *  schema.axisColumn(4);            //1
+ *  schema.buttonBit(6);             //2
+ *  
+ *  ChannelSchema both = ChannelSchema.combine(driverSchema, operatorSchema);
+ *  both.axisColumn(1, 4);           //Column of the operator's axis 4
+ */
+public class ChannelSchema
+{
+	/** What a stored channel holds */
+	public enum Type
+	{
+		/** Joystick axis, -1 to 1 */
+		AXIS,
+		
+		/** POV hat angle in degrees, -1 when released */
+		POV,
+		
+		/** Joystick button, one bit of the digital bitmask */
+		BUTTON;
+	}
+	
+	/** Most buttons that fit in a digital bitmask */
+	public final static int MAX_BUTTONS = Integer.SIZE;
+	
+	/** Bits of an input that hold its number. The device sits above them */
+	private final static int DEVICE_SHIFT = 8;
+	
+	/** Highest axis, button or POV number on one device */
+	public final static int MAX_NUMBER = (1 << DEVICE_SHIFT) - 1;
+	
+	/** Most devices a schema can span. Inputs are stored as 16 bits in binary route files */
+	public final static int MAX_DEVICES = 1 << (Short.SIZE - DEVICE_SHIFT);
+	
+	/** The layout every route had before routes carried a schema: axes 0 to 5, buttons 1 to 10, no POVs */
+	public final static ChannelSchema DEFAULT = new ChannelSchema(new int[] {0, 1, 2, 3, 4, 5}, new int[] {1, 2, 3, 4, 5, 6, 7, 8, 9, 10}, new int[0]);
+	
+	/** Recorded axis inputs, in column order. See input() */
+	private final int[] axes;
+	
+	/** Recorded button inputs, in bit order */
+	private final int[] buttons;
+	
+	/** Recorded POV inputs, in column order after the axes */
+	private final int[] povs;
+	
+	/**
+	 * @param axes - axis inputs to record. Each is stored in its own analog column, in this order
+	 * @param buttons - button inputs to record. Each is stored in its own bit, in this order. At most MAX_BUTTONS
+	 * @param povs - POV inputs to record. Each is stored in its own analog column, after the axes
+	 */
+	public ChannelSchema(int[] axes, int[] buttons, int[] povs)
+	{
+		if (buttons.length > MAX_BUTTONS)
+		{
+			throw new IllegalArgumentException("At most " + MAX_BUTTONS + " buttons can be recorded, got " + buttons.length);
+		}
+		for (int[] inputs : new int[][] {axes, buttons, povs})
+		{
+			for (int input : inputs)
+			{
+				if (input < 0 || input >= MAX_DEVICES << DEVICE_SHIFT)
+				{
+					throw new IllegalArgumentException("Input " + input + " is out of range, build it with ChannelSchema.input()");
+				}
+			}
+		}
+		this.axes = axes.clone();
+		this.buttons = buttons.clone();
+		this.povs = povs.clone();
+	}
+	
+	/**
+	 * @param device - which joystick, 0 for the first. See combine()
+	 * @param number - axis, button or POV number on that joystick, at most MAX_NUMBER
+	 * @return - the input to pass to the constructor
+	 */
+	public static int input(int device, int number)
+	{
+		return (device << DEVICE_SHIFT) | number;
+	}
+	
+	/**
+	 * @param joysticks - connected joysticks, one per device
+	 * @return - a schema recording every axis, button and POV each joystick reports. Buttons past MAX_BUTTONS in total are left out
+	 */
+	public static ChannelSchema of(Joystick... joysticks)
+	{
+		ChannelSchema[] devices = new ChannelSchema[joysticks.length];
+		int buttonsLeft = MAX_BUTTONS;
+		for (int d = 0; d < joysticks.length; d++)
+		{
+			int buttonCount = Math.min(joysticks[d].getButtonCount(), buttonsLeft);
+			buttonsLeft -= buttonCount;
+			devices[d] = new ChannelSchema(range(0, joysticks[d].getAxisCount()), range(1, buttonCount), range(0, joysticks[d].getPOVCount()));
+		}
+		return combine(devices);
+	}
+	
+	/**
+	 * Puts the inputs of several single-device schemas into one, so the devices can be recorded into the same timeline
+	 * @param devices - one schema per device, each using device 0 only. Device d's columns and bits come after those of device d - 1
+	 * @return - a schema where device d records what devices[d] lists
+	 */
+	public static ChannelSchema combine(ChannelSchema... devices)
+	{
+		if (devices.length == 1)
+		{
+			return devices[0];
+		}
+		if (devices.length > MAX_DEVICES)
+		{
+			throw new IllegalArgumentException("At most " + MAX_DEVICES + " devices can be combined, got " + devices.length);
+		}
+		int axisCount = 0, buttonCount = 0, povCount = 0;
+		for (ChannelSchema device : devices)
+		{
+			axisCount += device.axes.length;
+			buttonCount += device.buttons.length;
+			povCount += device.povs.length;
+		}
+		int[] axes = new int[axisCount], buttons = new int[buttonCount], povs = new int[povCount];
+		axisCount = buttonCount = povCount = 0;
+		for (int d = 0; d < devices.length; d++)
+		{
+			axisCount = moveToDevice(devices[d].axes, d, axes, axisCount);
+			buttonCount = moveToDevice(devices[d].buttons, d, buttons, buttonCount);
+			povCount = moveToDevice(devices[d].povs, d, povs, povCount);
+		}
+		return new ChannelSchema(axes, buttons, povs);
+	}
+	
+	/**
+	 * A schema for a file that only says how many channels it has, like files from before schemas were stored
+	 * @param analogChannelCount - number of analog columns, taken to be axes 0 and up
+	 * @param digitalChannelCount - number of digital bits, taken to be buttons 1 and up
+	 * @return - DEFAULT if the counts match it, otherwise a matching schema
+	 */
+	public static ChannelSchema withCounts(int analogChannelCount, int digitalChannelCount)
+	{
+		if (analogChannelCount == DEFAULT.getAnalogChannelCount() && digitalChannelCount == DEFAULT.getDigitalChannelCount())
+		{
+			return DEFAULT;
+		}
+		return new ChannelSchema(range(0, analogChannelCount), range(1, digitalChannelCount), new int[0]);
+	}
+	
+	/**
+	 * @return - number of devices the schema spans: one past the highest device any input is on
+	 */
+	public int getDeviceCount()
+	{
+		int highest = 0;
+		for (int[] inputs : new int[][] {axes, buttons, povs})
+		{
+			for (int input : inputs)
+			{
+				highest = Math.max(highest, input >>> DEVICE_SHIFT);
+			}
+		}
+		return highest + 1;
+	}
+	
+	/**
+	 * @return - number of recorded axes. The first this many analog columns are axes
+	 */
+	public int getAxisCount()
+	{
+		return axes.length;
+	}
+	
+	/**
+	 * @return - number of analog columns: axes, then POVs
+	 */
+	public int getAnalogChannelCount()
+	{
+		return axes.length + povs.length;
+	}
+	
+	/**
+	 * @return - number of bits used in the digital bitmask
+	 */
+	public int getDigitalChannelCount()
+	{
+		return buttons.length;
+	}
+	
+	/**
+	 * @param column - analog column
+	 * @return - AXIS or POV
+	 */
+	public Type getAnalogType(int column)
+	{
+		return (column < axes.length) ? Type.AXIS : Type.POV;
+	}
+	
+	/**
+	 * @param column - analog column
+	 * @return - the axis or POV number recorded in that column, on its device
+	 */
+	public int getAnalogInput(int column)
+	{
+		return analogInput(column) & MAX_NUMBER;
+	}
+	
+	/**
+	 * @param column - analog column
+	 * @return - the device the column was recorded from
+	 */
+	public int getAnalogDevice(int column)
+	{
+		return analogInput(column) >>> DEVICE_SHIFT;
+	}
+	
+	/**
+	 * @param bit - digital bit
+	 * @return - the button number recorded in that bit, on its device
+	 */
+	public int getButton(int bit)
+	{
+		return buttons[bit] & MAX_NUMBER;
+	}
+	
+	/**
+	 * @param bit - digital bit
+	 * @return - the device the button was recorded from
+	 */
+	public int getButtonDevice(int bit)
+	{
+		return buttons[bit] >>> DEVICE_SHIFT;
+	}
+	
+	/**
+	 * Schemas are a handful of channels, so these lookups just scan. They allocate nothing and are safe to call every cycle
+	 * @param axis - axis number on device 0
+	 * @return - the analog column holding that axis, or -1 if it isn't recorded
+	 */
+	public int axisColumn(int axis)
+	{
+		return axisColumn(0, axis);
+	}
+	
+	/**
+	 * @param device - which device
+	 * @param axis - axis number on that device
+	 * @return - the analog column holding that axis, or -1 if it isn't recorded
+	 */
+	public int axisColumn(int device, int axis)
+	{
+		return indexOf(axes, input(device, axis));
+	}
+	
+	/**
+	 * @param pov - POV number on device 0
+	 * @return - the analog column holding that POV, or -1 if it isn't recorded
+	 */
+	public int povColumn(int pov)
+	{
+		return povColumn(0, pov);
+	}
+	
+	/**
+	 * @param device - which device
+	 * @param pov - POV number on that device
+	 * @return - the analog column holding that POV, or -1 if it isn't recorded
+	 */
+	public int povColumn(int device, int pov)
+	{
+		int index = indexOf(povs, input(device, pov));
+		return (index < 0) ? -1 : axes.length + index;
+	}
+	
+	/**
+	 * @param button - button number on device 0
+	 * @return - the digital bit holding that button, or -1 if it isn't recorded
+	 */
+	public int buttonBit(int button)
+	{
+		return buttonBit(0, button);
+	}
+	
+	/**
+	 * @param device - which device
+	 * @param button - button number on that device
+	 * @return - the digital bit holding that button, or -1 if it isn't recorded
+	 */
+	public int buttonBit(int device, int button)
+	{
+		return indexOf(buttons, input(device, button));
+	}
+	
+	/**
+	 * @param axisTolerance - tolerance for every axis
+	 * @return - one tolerance per analog column for RouteCompactor, with POVs kept exact
+	 */
+	public double[] tolerances(double axisTolerance)
+	{
+		double[] tolerances = new double[getAnalogChannelCount()];
+		Arrays.fill(tolerances, 0, axes.length, axisTolerance);
+		return tolerances;
+	}
+	
+	/**
+	 * @param column - analog column
+	 * @return - the value the column holds while the input is left alone: 0 for an axis, -1 for a POV
+	 */
+	public double restValue(int column)
+	{
+		return (getAnalogType(column) == Type.AXIS) ? 0 : -1;
+	}
+	
+	@Override
+	public boolean equals(Object other)
+	{
+		if (!(other instanceof ChannelSchema))
+		{
+			return false;
+		}
+		ChannelSchema schema = (ChannelSchema)other;
+		return Arrays.equals(axes, schema.axes) && Arrays.equals(buttons, schema.buttons) && Arrays.equals(povs, schema.povs);
+	}
+	
+	@Override
+	public int hashCode()
+	{
+		return 31 * (31 * Arrays.hashCode(axes) + Arrays.hashCode(buttons)) + Arrays.hashCode(povs);
+	}
+	
+	@Override
+	public String toString()
+	{
+		return "axes " + describe(axes) + ", buttons " + describe(buttons) + ", POVs " + describe(povs);
+	}
+	
+	/**
+	 * @param column - analog column
+	 * @return - the input recorded in that column, device and number together
+	 */
+	int analogInput(int column)
+	{
+		return (column < axes.length) ? axes[column] : povs[column - axes.length];
+	}
+	
+	/**
+	 * @param bit - digital bit
+	 * @return - the input recorded in that bit, device and number together
+	 */
+	int buttonInput(int bit)
+	{
+		return buttons[bit];
+	}
+	
+	/**
+	 * @return - the inputs as a list, with inputs past device 0 written as device:number
+	 */
+	private static String describe(int[] inputs)
+	{
+		StringBuilder builder = new StringBuilder("[");
+		for (int i = 0; i < inputs.length; i++)
+		{
+			if (i > 0)
+			{
+				builder.append(", ");
+			}
+			if (inputs[i] >>> DEVICE_SHIFT != 0)
+			{
+				builder.append(inputs[i] >>> DEVICE_SHIFT).append(':');
+			}
+			builder.append(inputs[i] & MAX_NUMBER);
+		}
+		return builder.append(']').toString();
+	}
+	
+	/**
+	 * Copies device 0 inputs into another array, moved onto a device
+	 * @return - start plus the number of inputs copied
+	 */
+	private static int moveToDevice(int[] from, int device, int[] to, int start)
+	{
+		for (int i = 0; i < from.length; i++)
+		{
+			to[start + i] = input(device, from[i] & MAX_NUMBER);
+		}
+		return start + from.length;
+	}
+	
+	/**
+	 * @return - {first, first + 1, ... first + count - 1}
+	 */
+	private static int[] range(int first, int count)
+	{
+		int[] values = new int[Math.max(count, 0)];
+		for (int i = 0; i < values.length; i++)
+		{
+			values[i] = first + i;
+		}
+		return values;
+	}
+	
+	/**
+	 * @return - the index of value in values, or -1
+	 */
+	private static int indexOf(int[] values, int value)
+	{
+		for (int i = 0; i < values.length; i++)
+		{
+			if (values[i] == value)
+			{
+				return i;
+			}
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,149 @@
+package org.team283.auto;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Replaces a file so that losing power at any point leaves either the whole old file or the whole new one, never a mix or an empty file
+ *
+ * The steps, for napalm_driver_left_side.route:
+ *  1. The new contents are written to napalm_driver_left_side.route.tmp next to it, and forced onto the flash
+ *  2. The current file is hard linked as napalm_driver_left_side.route.bak, which keeps the previous save around as a fallback
+ *  3. The temporary file is renamed over the current one. A rename within a folder is atomic, so the file name always points at a complete file
+ *  4. The folder is forced, so the rename itself survives a brownout
+ * Writing the old file in place would truncate it first, so a brownout partway through used to leave a route empty or half written
+ *
+ * A file left behind at .tmp by a crash is just overwritten by the next replace()
+ *
+ * Example Usage:
+ *  DurableFile.replace(file, (channel) -> BinaryRouteFile.write(routeData, channel, false));
+ *  ...
+ *  File fallback = DurableFile.backupFor(file);  //Read this if the file itself can't be
+ */
+public class DurableFile
+{
+	/** Added onto the end of the file name while the new contents are being written */
+	public final static String TEMPORARY_EXTENSION = "tmp";
+	
+	/** Added onto the end of the file name for the previous contents */
+	public final static String BACKUP_EXTENSION = "bak";
+	
+	/**
+	 * Writes the new contents of a file
+	 */
+	public interface Contents
+	{
+		/**
+		 * @param channel - empty file to write to. Forced and closed by replace()
+		 * @throws IOException - if writing fails. The file being replaced is left as it was
+		 */
+		void writeTo(FileChannel channel) throws IOException;
+	}
+	
+	/**
+	 * @param file - a file written by replace()
+	 * @return - where its previous contents are kept
+	 */
+	public static File backupFor(File file)
+	{
+		return new File(file.getPath() + "." + BACKUP_EXTENSION);
+	}
+	
+	/**
+	 * @param file - a file written by replace()
+	 * @return - where its new contents are written before they replace it
+	 */
+	public static File temporaryFor(File file)
+	{
+		return new File(file.getPath() + "." + TEMPORARY_EXTENSION);
+	}
+	
+	/**
+	 * Replaces a file's contents atomically and durably, keeping the previous contents at backupFor(file)
+	 * @param file - file to replace. Doesn't have to exist yet
+	 * @param contents - writes the new contents
+	 * @return - size of the new file in bytes
+	 * @throws IOException - if anything fails. The file is then either untouched or already fully replaced, never partly written
+	 */
+	public static long replace(File file, Contents contents) throws IOException
+	{
+		Path target = file.toPath();
+		Path temporary = temporaryFor(file).toPath();
+		long size;
+		try
+		{
+			try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING))
+			{
+				contents.writeTo(channel);
+				//The data has to be on the flash before the rename is, or a brownout could leave the name pointing at a file that was never written
+				channel.force(true);
+				size = channel.size();
+			}
+			
+			if (Files.exists(target))
+			{
+				keepBackup(target, backupFor(file).toPath());
+			}
+			
+			try
+			{
+				Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			}
+			catch (AtomicMoveNotSupportedException e)
+			{
+				//Only happens on file systems that can't rename atomically. The backup still holds the old contents
+				Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING);
+			}
+		}
+		catch (IOException | RuntimeException e)
+		{
+			Files.deleteIfExists(temporary);
+			throw e;
+		}
+		forceFolder(target.toAbsolutePath().getParent());
+		return size;
+	}
+	
+	/**
+	 * Points the backup at the current file's contents
+	 * A hard link costs nothing and can't be torn. File systems without links get a copy
+	 */
+	private static void keepBackup(Path target, Path backup) throws IOException
+	{
+		Files.deleteIfExists(backup);
+		try
+		{
+			Files.createLink(backup, target);
+		}
+		catch (IOException | UnsupportedOperationException e)
+		{
+			Files.copy(target, backup, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+	
+	/**
+	 * Forces a folder's entries onto the flash, so renames in it survive a brownout
+	 * Not every platform can open a folder, in which case the rename is left to the file system
+	 */
+	private static void forceFolder(Path folder)
+	{
+		if (folder == null)
+		{
+			return;
+		}
+		try (FileChannel channel = FileChannel.open(folder, StandardOpenOption.READ))
+		{
+			channel.force(true);
+		}
+		catch (IOException e)
+		{
+			//Windows can't open folders. The file itself is already safe
+		}
+	}
+}
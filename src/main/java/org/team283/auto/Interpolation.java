@@ -0,0 +1,17 @@
+package org.team283.auto;
+
+/**
+ * How analog values are read between two measurements during playback. Buttons are always read as recorded
+ * See PhantomRoute.interpolateAnalog()
+ */
+public enum Interpolation
+{
+	/** The recorded value, held until the next measurement. How playback always worked */
+	STEP,
+	
+	/** A straight line between the measurements on either side of the time */
+	LINEAR,
+	
+	/** A monotone cubic (Fritsch-Carlson Hermite) curve through the measurements. Smooth, and never overshoots the recorded values */
+	CUBIC;
+}
@@ -0,0 +1,532 @@
+package org.team283.auto;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.Arrays;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Reads and writes the layout of a json route file, where every measurement is one row
+ *
+ * Routes are stored as columns in memory (see RouteTimeline), but the files keep this layout so that old routes still load:
+ *  {"robot": ..., "title": ..., "description": ..., "version": ..., "role": ..., "lastModified": ..., "length": ..., "duration": ...,
+ *   "schema": {...}, "analog": [[...], ...], "digital": [[...], ...], "spacing": [...], "spacingNanos": [...]}
+ *
+ * length and duration come before the rows, so readHeader() can describe a route and stop reading there. Older libraries ignore them.
+ * Files written before they existed are still read to the end, but only the spacing values are looked at
+ *
+ * The file is streamed token by token with Gson's JsonReader and JsonWriter. Each row goes straight into or out of the primitive
+ * columns, so neither the whole file as a String nor a boxed Double[] and Boolean[] per measurement is ever built
+ *
+ * An instance of this class is a parsed header
+ *
+ * Example Usage:
+ *  RouteData routeData = LegacyRouteJson.read(reader);
+ *  LegacyRouteJson.write(routeData, writer);
+ *  long duration = LegacyRouteJson.readHeader(reader).duration;
+ */
+class LegacyRouteJson
+{
+	/** Reads and writes the schema, which is small enough that reflection doesn't matter */
+	private final static Gson gson = new GsonBuilder().create();
+	
+	/** Rows to make room for before the length is known */
+	private final static int INITIAL_CAPACITY = RouteTimeline.DEFAULT_CAPACITY;
+	
+	/** Route description read from the header. The timeline is left null */
+	public RouteData routeData;
+	
+	/** Number of measurements */
+	public int length;
+	
+	/** Time in ms from the first measurement to the last, the same as PhantomRoute.getDuration() */
+	public long duration;
+	
+	/**
+	 * Reads a route's description, number of measurements and duration, without its rows where possible
+	 * @param in - the file's contents. Not closed, and left partly read
+	 * @return - the parsed header
+	 * @throws IOException - if the json can't be read or doesn't hold a route
+	 */
+	static LegacyRouteJson readHeader(Reader in) throws IOException
+	{
+		LegacyRouteJson header = new LegacyRouteJson();
+		header.routeData = new RouteData();
+		int length = -1;
+		long duration = -1;
+		
+		//Summed from the spacing values, for files without length and duration
+		int spacingCount = 0;
+		long firstSpacing = 0;
+		long spacingTotal = 0;
+		int spacingNanosCount = 0;
+		long firstSpacingNanos = 0;
+		long spacingNanosTotal = 0;
+		
+		try
+		{
+			JsonReader reader = new JsonReader(in);
+			reader.beginObject();
+			while (reader.hasNext())
+			{
+				String name = reader.nextName();
+				//length and duration are written before the rows, so once they're known the rest can be left unread
+				if (length >= 0 && duration >= 0 && (name.equals("analog") || name.equals("digital") || name.equals("spacing") || name.equals("spacingNanos")))
+				{
+					break;
+				}
+				if (reader.peek() == JsonToken.NULL)
+				{
+					reader.nextNull();
+					continue;
+				}
+				switch (name)
+				{
+					case "robot":
+						header.routeData.robot = reader.nextString();
+						break;
+					case "title":
+						header.routeData.title = reader.nextString();
+						break;
+					case "description":
+						header.routeData.description = reader.nextString();
+						break;
+					case "version":
+						header.routeData.version = reader.nextInt();
+						break;
+					case "role":
+						header.routeData.role = reader.nextString();
+						break;
+					case "lastModified":
+						header.routeData.lastModified = reader.nextLong();
+						break;
+					case "length":
+						length = reader.nextInt();
+						break;
+					case "duration":
+						duration = reader.nextLong();
+						break;
+					case "schema":
+						header.routeData.schema = gson.fromJson(reader, ChannelSchema.class);
+						break;
+					case "spacing":
+						reader.beginArray();
+						while (reader.hasNext())
+						{
+							long spacing = reader.nextInt() * RouteTimeline.NANOS_PER_MS;
+							if (spacingCount++ == 0)
+							{
+								firstSpacing = spacing;
+							}
+							spacingTotal += spacing;
+						}
+						reader.endArray();
+						break;
+					case "spacingNanos":
+						reader.beginArray();
+						while (reader.hasNext())
+						{
+							long spacing = reader.nextLong();
+							if (spacingNanosCount++ == 0)
+							{
+								firstSpacingNanos = spacing;
+							}
+							spacingNanosTotal += spacing;
+						}
+						reader.endArray();
+						break;
+					default:
+						//The rows, and anything written by a newer library
+						reader.skipValue();
+				}
+			}
+		}
+		catch (IllegalStateException | NumberFormatException | JsonParseException e)
+		{
+			throw new IOException("Not a json route: " + e.getMessage(), e);
+		}
+		
+		if (header.routeData.schema == null)
+		{
+			header.routeData.schema = ChannelSchema.DEFAULT;
+		}
+		if (length >= 0 && duration >= 0)
+		{
+			header.length = length;
+			header.duration = duration;
+		}
+		else
+		{
+			//Same rules as read(): the ns spacing is only used if there's one for every measurement
+			boolean nanos = spacingNanosCount == spacingCount;
+			long first = nanos ? firstSpacingNanos : firstSpacing;
+			long last = nanos ? spacingNanosTotal : spacingTotal;
+			header.length = spacingCount;
+			header.duration = (spacingCount == 0) ? 0 : RouteTimeline.toMillis(last) - RouteTimeline.toMillis(first);
+		}
+		return header;
+	}
+	
+	/**
+	 * Reads a whole json route
+	 * @param in - the file's contents. Not closed
+	 * @return - the route, with the rows unpacked into columns
+	 * @throws IOException - if the json can't be read or doesn't hold a route
+	 */
+	static RouteData read(Reader in) throws IOException
+	{
+		RouteData routeData = new RouteData();
+		ChannelSchema schema = null;
+		
+		//Gson writes the schema before the rows, so the number of analog columns is known by then. Files without one use the default
+		double[][] analog = null;
+		int analogCapacity = INITIAL_CAPACITY;
+		int analogRows = 0;
+		int[] digital = new int[INITIAL_CAPACITY];
+		int digitalRows = 0;
+		long[] spacing = null;
+		int spacingCount = 0;
+		long[] spacingNanos = null;
+		int spacingNanosCount = 0;
+		
+		try
+		{
+			JsonReader reader = new JsonReader(in);
+			reader.beginObject();
+			while (reader.hasNext())
+			{
+				String name = reader.nextName();
+				if (reader.peek() == JsonToken.NULL)
+				{
+					reader.nextNull();
+					continue;
+				}
+				switch (name)
+				{
+					case "robot":
+						routeData.robot = reader.nextString();
+						break;
+					case "title":
+						routeData.title = reader.nextString();
+						break;
+					case "description":
+						routeData.description = reader.nextString();
+						break;
+					case "version":
+						routeData.version = reader.nextInt();
+						break;
+					case "role":
+						routeData.role = reader.nextString();
+						break;
+					case "lastModified":
+						routeData.lastModified = reader.nextLong();
+						break;
+					case "schema":
+						schema = gson.fromJson(reader, ChannelSchema.class);
+						if (analog != null && analog.length != schema.getAnalogChannelCount())
+						{
+							//Only if something other than Gson put the schema after the rows
+							analog = resize(analog, schema.getAnalogChannelCount(), analogCapacity);
+						}
+						break;
+					case "analog":
+						if (analog == null)
+						{
+							int columns = (schema == null) ? ChannelSchema.DEFAULT.getAnalogChannelCount() : schema.getAnalogChannelCount();
+							analog = new double[columns][analogCapacity];
+						}
+						reader.beginArray();
+						while (reader.hasNext())
+						{
+							if (analogRows == analogCapacity)
+							{
+								analogCapacity *= 2;
+								analog = grow(analog, analogCapacity);
+							}
+							readAnalogRow(reader, analog, analogRows++);
+						}
+						reader.endArray();
+						break;
+					case "digital":
+						reader.beginArray();
+						while (reader.hasNext())
+						{
+							if (digitalRows == digital.length)
+							{
+								digital = Arrays.copyOf(digital, digitalRows * 2);
+							}
+							digital[digitalRows++] = readDigitalRow(reader);
+						}
+						reader.endArray();
+						break;
+					case "spacing":
+						spacing = new long[Math.max(analogRows, INITIAL_CAPACITY)];
+						reader.beginArray();
+						while (reader.hasNext())
+						{
+							if (spacingCount == spacing.length)
+							{
+								spacing = Arrays.copyOf(spacing, spacingCount * 2);
+							}
+							spacing[spacingCount++] = reader.nextInt() * RouteTimeline.NANOS_PER_MS;
+						}
+						reader.endArray();
+						break;
+					case "spacingNanos":
+						spacingNanos = new long[Math.max(analogRows, INITIAL_CAPACITY)];
+						reader.beginArray();
+						while (reader.hasNext())
+						{
+							if (spacingNanosCount == spacingNanos.length)
+							{
+								spacingNanos = Arrays.copyOf(spacingNanos, spacingNanosCount * 2);
+							}
+							spacingNanos[spacingNanosCount++] = reader.nextLong();
+						}
+						reader.endArray();
+						break;
+					default:
+						//Written by a newer library
+						reader.skipValue();
+				}
+			}
+			reader.endObject();
+		}
+		catch (IllegalStateException | NumberFormatException | JsonParseException e)
+		{
+			//Thrown for a value of the wrong type, e.g. a string where a number should be
+			throw new IOException("Not a json route: " + e.getMessage(), e);
+		}
+		
+		routeData.schema = (schema == null) ? ChannelSchema.DEFAULT : schema;
+		if (analog == null)
+		{
+			analog = new double[routeData.schema.getAnalogChannelCount()][INITIAL_CAPACITY];
+		}
+		
+		//There is one spacing value per measurement, and the ns ones are only used if there's one for every measurement
+		int length = spacingCount;
+		if (analogRows < length || digitalRows < length)
+		{
+			throw new IOException("Json route has " + length + " spacing values but only " + analogRows + " analog and " + digitalRows + " digital rows");
+		}
+		long[] timestamps = (spacingNanos != null && spacingNanosCount == length) ? spacingNanos : spacing;
+		if (timestamps == null)
+		{
+			timestamps = new long[INITIAL_CAPACITY];
+		}
+		//Spacings are summed in place into timestamps
+		for (int i = 1; i < length; i++)
+		{
+			timestamps[i] += timestamps[i - 1];
+		}
+		
+		//Buttons past the schema's were never part of the route
+		int digitalChannelCount = routeData.schema.getDigitalChannelCount();
+		if (digitalChannelCount < Integer.SIZE)
+		{
+			int mask = (1 << digitalChannelCount) - 1;
+			for (int i = 0; i < length; i++)
+			{
+				digital[i] &= mask;
+			}
+		}
+		
+		//The columns have to be the same size
+		int capacity = Math.max(length, 1);
+		routeData.timeline = new RouteTimeline(grow(analog, capacity), Arrays.copyOf(digital, capacity), Arrays.copyOf(timestamps, capacity), length);
+		return routeData;
+	}
+	
+	/**
+	 * Writes a whole route as json
+	 * @param routeData - route to write
+	 * @param out - where to write it. Flushed but not closed
+	 * @throws IOException - if writing fails
+	 */
+	static void write(RouteData routeData, Writer out) throws IOException
+	{
+		JsonWriter writer = new JsonWriter(out);
+		//Same escaping as Gson.toJson(), so files come out the same as they always have
+		writer.setHtmlSafe(true);
+		
+		writer.beginObject();
+		//Gson leaves null fields out
+		if (routeData.robot != null)
+		{
+			writer.name("robot").value(routeData.robot);
+		}
+		if (routeData.title != null)
+		{
+			writer.name("title").value(routeData.title);
+		}
+		if (routeData.description != null)
+		{
+			writer.name("description").value(routeData.description);
+		}
+		writer.name("version").value(routeData.version);
+		if (routeData.role != null)
+		{
+			writer.name("role").value(routeData.role);
+		}
+		writer.name("lastModified").value(routeData.lastModified);
+		
+		RouteTimeline timeline = routeData.timeline;
+		int length = timeline.length();
+		//Lets readHeader() stop before the rows. Rounded the same way as PhantomRoute.getDuration()
+		writer.name("length").value(length);
+		writer.name("duration").value((length == 0) ? 0 : RouteTimeline.toMillis(timeline.getTimestampNanos(length - 1)) - RouteTimeline.toMillis(timeline.getTimestampNanos(0)));
+		
+		//Left out of files that use the default schema, so they stay readable by older libraries
+		ChannelSchema schema = routeData.schema;
+		if (!ChannelSchema.DEFAULT.equals(schema))
+		{
+			writer.name("schema");
+			gson.toJson(schema, ChannelSchema.class, writer);
+		}
+		
+		writer.name("analog").beginArray();
+		for (int i = 0; i < length; i++)
+		{
+			writer.beginArray();
+			for (int c = 0; c < schema.getAnalogChannelCount(); c++)
+			{
+				writer.value(timeline.getAnalog(c, i));
+			}
+			writer.endArray();
+		}
+		writer.endArray();
+		
+		writer.name("digital").beginArray();
+		for (int i = 0; i < length; i++)
+		{
+			int digitalMask = timeline.getDigitalMask(i);
+			writer.beginArray();
+			for (int d = 0; d < schema.getDigitalChannelCount(); d++)
+			{
+				writer.value((digitalMask & (1 << d)) != 0);
+			}
+			writer.endArray();
+		}
+		writer.endArray();
+		
+		//Older libraries only read the ms spacing, which is still written
+		writer.name("spacing").beginArray();
+		for (int i = 0; i < length; i++)
+		{
+			writer.value(timeline.getSpacing(i));
+		}
+		writer.endArray();
+		
+		//Only written for routes timed finer than whole ms, and used instead of spacing when present
+		if (!timeline.isWholeMillis())
+		{
+			writer.name("spacingNanos").beginArray();
+			for (int i = 0; i < length; i++)
+			{
+				writer.value(timeline.getSpacingNanos(i));
+			}
+			writer.endArray();
+		}
+		writer.endObject();
+		writer.flush();
+	}
+	
+	/**
+	 * Reads one row of analog values into the columns. Missing and null values are 0, extra ones are dropped
+	 * @param reader - positioned at the row
+	 * @param analog - the columns
+	 * @param index - row to fill in
+	 * @throws IOException - if the row can't be read
+	 */
+	private static void readAnalogRow(JsonReader reader, double[][] analog, int index) throws IOException
+	{
+		reader.beginArray();
+		int c = 0;
+		while (reader.hasNext())
+		{
+			if (reader.peek() == JsonToken.NULL)
+			{
+				reader.nextNull();
+			}
+			else if (c < analog.length)
+			{
+				analog[c][index] = reader.nextDouble();
+			}
+			else
+			{
+				reader.skipValue();
+			}
+			c++;
+		}
+		reader.endArray();
+	}
+	
+	/**
+	 * Reads one row of button values
+	 * @param reader - positioned at the row
+	 * @return - the row as a bitmask, bit n is button n
+	 * @throws IOException - if the row can't be read
+	 */
+	private static int readDigitalRow(JsonReader reader) throws IOException
+	{
+		reader.beginArray();
+		int digitalMask = 0;
+		int d = 0;
+		while (reader.hasNext())
+		{
+			if (reader.peek() == JsonToken.BOOLEAN)
+			{
+				if (reader.nextBoolean() && d < Integer.SIZE)
+				{
+					digitalMask |= (1 << d);
+				}
+			}
+			else
+			{
+				reader.skipValue();
+			}
+			d++;
+		}
+		reader.endArray();
+		return digitalMask;
+	}
+	
+	/**
+	 * @param columns - analog columns
+	 * @param capacity - rows each column should have room for
+	 * @return - the columns copied to the new capacity
+	 */
+	private static double[][] grow(double[][] columns, int capacity)
+	{
+		double[][] grown = new double[columns.length][];
+		for (int c = 0; c < columns.length; c++)
+		{
+			grown[c] = (columns[c].length == capacity) ? columns[c] : Arrays.copyOf(columns[c], capacity);
+		}
+		return grown;
+	}
+	
+	/**
+	 * @param columns - analog columns
+	 * @param count - number of columns wanted
+	 * @param capacity - rows each column has room for
+	 * @return - the same columns, with empty ones added or extra ones dropped
+	 */
+	private static double[][] resize(double[][] columns, int count, int capacity)
+	{
+		double[][] resized = Arrays.copyOf(columns, count);
+		for (int c = columns.length; c < count; c++)
+		{
+			resized[c] = new double[capacity];
+		}
+		return resized;
+	}
+}
@@ -0,0 +1,199 @@
+package org.team283.auto;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A read-only PhantomRoute that plays straight out of its binary file
+ *
+ * The file is memory mapped instead of being read onto the heap. Loading costs about the same for any route length,
+ * and the timeline never touches the heap, so selecting one at the start of autonomous can't cause a garbage collection pause.
+ * Reads go through the operating system's page cache
+ *
+ * Only binary route files can be mapped. Anything that would change the route throws an UnsupportedOperationException;
+ * record into the normal PhantomRoute for the same file instead, and map it again after it's saved
+ *
+ * Example Usage:
+ *  PhantomRoute pr = new MappedPhantomRoute("/home/lvuser/frc/routes/napalm_driver_left_side.route");
+ *  pr.getAnalog(0, pr.indexFromTime(1500));
+ */
+public class MappedPhantomRoute extends PhantomRoute
+{
+	/** The whole route file, mapped read-only */
+	private MappedByteBuffer buffer;
+	
+	/** Parsed header of the mapped file. Holds the column offsets */
+	private BinaryRouteFile header;
+	
+	/**
+	 * Maps an existing binary route file
+	 * @param path - absolute file path to the saved route
+	 * @throws IOException - if the file can't be read or isn't a binary route
+	 */
+	public MappedPhantomRoute(String path) throws IOException
+	{
+		this.file = new File(path);
+		this.format = RouteFormat.BINARY;
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ))
+		{
+			this.header = BinaryRouteFile.readHeader(channel);
+			if (header.isEncoded())
+			{
+				throw new IOException("Route file " + path + " is encoded, play it with a StreamingPhantomRoute instead");
+			}
+			if (channel.size() < header.fileSize())
+			{
+				throw new IOException("Route file " + path + " is shorter than its header says");
+			}
+			//The mapping stays valid after the channel is closed
+			this.buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, header.fileSize());
+			this.buffer.order(ByteOrder.LITTLE_ENDIAN);
+		}
+		this.routeData = header.routeData;
+	}
+	
+	@Override
+	public int indexFromTimeNanos(long time)
+	{
+		if (time <= 0)
+		{
+			return 0;
+		}
+		
+		//Find the first measurement whose timestamp is at or past the time. Same search as RouteTimeline
+		int low = 0;
+		int high = header.length;
+		while (low < high)
+		{
+			int middle = (low + high) >>> 1;
+			if (timestampAt(middle) < time)
+			{
+				low = middle + 1;
+			}
+			else
+			{
+				high = middle;
+			}
+		}
+		return Math.min(low + 1, header.length);
+	}
+	
+	@Override
+	public int indexFromTimeNanos(long time, int previousIndex)
+	{
+		if (time <= 0)
+		{
+			return 0;
+		}
+		
+		//Number of measurements before the time. See RouteTimeline.indexFromTimeNanos(long, int)
+		int before = Math.max(Math.min(previousIndex, header.length) - 1, 0);
+		if (before > 0 && timestampAt(before - 1) >= time)
+		{
+			return indexFromTimeNanos(time);
+		}
+		while (before < header.length && timestampAt(before) < time)
+		{
+			before++;
+		}
+		return Math.min(before + 1, header.length);
+	}
+	
+	@Override
+	public double getAnalog(int channel, int index)
+	{
+		checkIndex(index);
+		if (channel < 0 || channel >= header.analogChannelCount)
+		{
+			throw new IndexOutOfBoundsException("Analog channel " + channel + " out of bounds for " + header.analogChannelCount + " channels");
+		}
+		return buffer.getDouble((int)(header.analogOffset(channel) + (long)Double.BYTES * index));
+	}
+	
+	@Override
+	public boolean getDigital(int channel, int index)
+	{
+		checkIndex(index);
+		return (buffer.getInt((int)(header.digitalOffset() + (long)Integer.BYTES * index)) & (1 << channel)) != 0;
+	}
+	
+	@Override
+	public long getTimestampNanos(int index)
+	{
+		checkIndex(index);
+		return timestampAt(index);
+	}
+	
+	@Override
+	public boolean isLoaded()
+	{
+		//Nothing to load, every read goes to the mapped file
+		return true;
+	}
+	
+	@Override
+	public int length()
+	{
+		return header.length;
+	}
+	
+	@Override
+	public void addNanos(double[] analogValues, int digitalMask, long spacingNanos)
+	{
+		throw new UnsupportedOperationException("MappedPhantomRoute is read-only");
+	}
+	
+	@Override
+	public void ensureCapacity(int capacity)
+	{
+		throw new UnsupportedOperationException("MappedPhantomRoute is read-only");
+	}
+	
+	@Override
+	public void clear()
+	{
+		throw new UnsupportedOperationException("MappedPhantomRoute is read-only");
+	}
+	
+	@Override
+	public RouteCompactor.Result compact(double[] tolerances, RouteCompactor.Mode mode, boolean trimIdle)
+	{
+		throw new UnsupportedOperationException("MappedPhantomRoute is read-only");
+	}
+	
+	@Override
+	public SaveResult save()
+	{
+		throw new UnsupportedOperationException("MappedPhantomRoute is read-only");
+	}
+	
+	@Override
+	public void setFormat(RouteFormat format)
+	{
+		throw new UnsupportedOperationException("MappedPhantomRoute is read-only");
+	}
+	
+	/**
+	 * @param index - measurement index, already bounds checked
+	 * @return - the timestamp of that measurement in ns, straight from the mapped file
+	 */
+	private long timestampAt(int index)
+	{
+		return buffer.getLong((int)(header.timestampOffset() + (long)Long.BYTES * index));
+	}
+	
+	/**
+	 * @param index - index to check
+	 */
+	private void checkIndex(int index)
+	{
+		if (index < 0 || index >= header.length)
+		{
+			throw new IndexOutOfBoundsException("Index " + index + " out of bounds for length " + header.length);
+		}
+	}
+}
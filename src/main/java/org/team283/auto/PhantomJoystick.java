@@ -1,16 +1,28 @@
 package org.team283.auto;
 
 import java.io.File;
-import java.util.HashMap;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import org.team283.util.Logger;
 
 import edu.wpi.first.wpilibj.Joystick;
-import edu.wpi.first.wpilibj.Timer;
 
 /**
  * Second version, using the PhantomRoute wrapper class, as well as gson data encoding
  * 
  * This class is a jukebox. It contains all the discs, and can play the discs, as well as record new discs and record over old discs
  * When you create a PhantomJoystick, it will find all .route files stored on the system, not just the designated save folder
+ * Routes are found through a RouteCatalog, so only routes that changed since the last boot are looked at, and a route's timeline is only read once it's made active
+ * Timelines of routes that aren't active live in a RouteBodyCache, so listing and describing routes never reads a timeline
+ * Routes copied into or deleted from the route folder while the robot is on are picked up by a RouteWatcher; see applyRouteChanges()
+ * Several joysticks can be recorded into one route, e.g. driver and operator, so they play back on the same clock. Give the constructor
+ * every joystick and the route a schema spanning them (see ChannelSchema.combine()), then read each one back through getDevice()
  * 
  * Note: nothing is static on this class because we trawl for Routes when constructing a joystick
  *
@@ -20,8 +32,6 @@ import edu.wpi.first.wpilibj.Timer;
  *     Playback: The process of playing back all the joystick data
  *     Recording: The process of actually recording the joystick data
  *     
- * TODO; prevent duplicate routes
- * TODO: enable/disable printsouts. For real. nEEDED
  * TODO: reversing function
  */
 public class PhantomJoystick
@@ -32,78 +42,258 @@ public class PhantomJoystick
 	/** The folder that is searched for all .route files. Should be as high up in the file system as possible */
 	public final static String ROOT_SEARCH_FOLDER = "/home";
 	
+	/** How much of a fixed rate recording recordingRing holds in ns. If recordPeriodic() isn't called for longer than this, measurements are dropped */
+	private final static long RING_NANOS = 1_000_000_000L;
+	
 	/** True when playing back the data */
 	private boolean playback = false;
 	
 	/** True when recording the data */
 	private boolean recording = false;
 	
-	/** Allows printouts when functions execute. Can disable with disablePrintouts() */
-	private boolean allowPrintouts = true;
+	/** Printouts when functions execute. Can turn down with setLogLevel() or disablePrintouts() */
+	private final Logger log = new Logger("PhantomJoystick", Logger.Level.INFO);
 	
-	/** Used to mete out recording and playback */
-	private Timer timer;
+	/** System.nanoTime() when the current recording or playback started. Both run on this one monotonic clock, so routes play back at the pace they were recorded */
+	private long startNanos = 0;
 	
 	/** The route currently being written/read to/from] */
 	private PhantomRoute activeRoute;
 	
-	/** Used to control indexing during playback */
+	/** The route read from during playback. Either the active route itself, or a memory mapped view of its file */
+	private PhantomRoute playbackRoute;
+	
+	/** When true, playback reads from a memory mapped view of the active route's file. Set with setMappedPlayback() */
+	private boolean mappedPlayback = false;
+	
+	/** When true, recordings are journaled as they're made so they survive a crash. Set with setStreamingRecording() */
+	private boolean streamingRecording = false;
+	
+	/** Time between measurements in ns when recording on a RecordingScheduler, or 0 to record whenever recordPeriodic() is called. Set with setFixedRateRecording() */
+	private long recordingPeriodNanos = 0;
+	
+	/** Takes the measurements during a fixed rate recording. Null otherwise */
+	private RecordingScheduler recordingScheduler;
+	
+	/** Carries measurements from the scheduler thread to the robot thread during a fixed rate recording, which adds them to the route. Null otherwise */
+	private SampleRing recordingRing;
+	
+	/** Adds drained measurements to the active route. Kept so draining doesn't create a new method reference every cycle */
+	private final SampleRing.Sink ringSink = this::addMeasurement;
+	
+	/** Time of the last measurement added to the current recording, in ns since it started */
+	private long recordedNanos = 0;
+	
+	/** Used to control indexing during playback. Only ever moves forward while playing */
 	private int playbackIndex = 0;
 	
-	/** Joystick where values are watched during recording */
-	private Joystick recordingJoystick;
+	/** Time in ms that playbackIndex was found for */
+	private double playbackTime = 0;
+	
+	/** How axis values are read between measurements. Set with setInterpolation() */
+	private Interpolation interpolation = Interpolation.STEP;
+	
+	/** True once playbackPeriodic() has been called during this playback. From then on the index only changes once per cycle */
+	private boolean playbackLatched = false;
+	
+	/** Folder new routes are saved in and watched for changes. routeFolder, except in tests */
+	private final String saveFolder;
+	
+	/** Joysticks where values are watched during recording, by device. See ChannelSchema */
+	private Joystick[] recordingJoysticks;
+	
+	/** Schema of the route being recorded, taken at recordInit() */
+	private ChannelSchema recordingSchema = ChannelSchema.DEFAULT;
+	
+	/** Joystick each analog column is read from during recording, or null if there's no joystick for its device. Set at recordInit() */
+	private Joystick[] analogSources = new Joystick[0];
+	
+	/** Joystick each button bit is read from during recording, or null if there's no joystick for its device. Set at recordInit() */
+	private Joystick[] buttonSources = new Joystick[0];
+	
+	/** Filled with analog values every recording cycle, so recording doesn't allocate a new array each time. Sized to recordingSchema */
+	private double[] analogBuffer = new double[RouteData.analogChannelCount];
 	
 	/** Contains all PhantomRoutes found all the system */
-	private HashMap<String, PhantomRoute> storedRoutes;
+	private ConcurrentHashMap<String, PhantomRoute> storedRoutes;
+	
+	/** Holds the timelines of stored routes that aren't active. Only routes that are actually used get read, and they're dropped again under memory pressure */
+	private RouteBodyCache bodyCache = new RouteBodyCache();
+	
+	/** Writes routes on a background thread so that stopping a recording doesn't wait on the file system */
+	private RoutePersistence persistence = new RoutePersistence();
+	
+	/** Reports route files added, changed or deleted in the route folder. Null if the folder can't be watched */
+	private RouteWatcher routeWatcher;
+	
+	/**
+	 * @param recordingJoysticks - joysticks to record from. The first is device 0, the next device 1 and so on
+	 */
+	public PhantomJoystick(Joystick... recordingJoysticks)
+	{
+		this(routeFolder, ROOT_SEARCH_FOLDER, recordingJoysticks);
+	}
 	
-	public PhantomJoystick(Joystick recordingJoystick)
+	/**
+	 * Keeps routes somewhere other than the robot's route folder, so tests don't touch /home
+	 * @param saveFolder - folder new routes are saved in, and the catalog kept in
+	 * @param searchFolder - folder searched for existing routes
+	 * @param recordingJoysticks - joysticks to record from. The first is device 0, the next device 1 and so on
+	 */
+	PhantomJoystick(String saveFolder, String searchFolder, Joystick... recordingJoysticks)
 	{
-		storedRoutes = new HashMap<String, PhantomRoute>();
+		this.saveFolder = saveFolder;
+		storedRoutes = new ConcurrentHashMap<String, PhantomRoute>();
+		
+		this.recordingJoysticks = recordingJoysticks.clone();
 		
-		timer = new Timer();
+		//Check the saved catalog against the file system instead of reading every .route file. Timelines are read once a route is made active
+		RouteCatalog catalog = new RouteCatalog(new File(saveFolder, RouteCatalog.FILE_NAME));
+		catalog.refresh(new File(searchFolder));
+		catalog.getEntries().parallelStream().forEach((entry) -> addStoredRoute(new PhantomRoute(entry, bodyCache)));
 		
-		this.recordingJoystick = recordingJoystick;
+		if (storedRoutes.isEmpty())
+		{
+			print("No routes found. Create a route or most functions will not work correctly.");
+		}
 		
-		//Create a directory representation, and start iterating through it for .route files
-		createPhantomRoutes(new File(PhantomJoystick.ROOT_SEARCH_FOLDER).listFiles());
+		try
+		{
+			routeWatcher = new RouteWatcher(new File(saveFolder));
+		}
+		catch (IOException e)
+		{
+			log.warn("Could not watch " + saveFolder + " for new routes. " + e.getMessage());
+		}
 	}
 	
 	/**
-	 * Searches a directory for .route files then makes PhantomRoute wrappers for them
-	 * @param files
+	 * Brings the stored routes up to date with route files added, changed or deleted in the route folder since the last call
+	 * Called by setActiveRoute(), playbackInit() and getAllOverviews(). Does nothing during playback or recording, so the active route never changes underneath them
+	 * A route with unsaved changes keeps them, even if its file changed
+	 * @return - number of stored routes added, replaced or removed
 	 */
-	private void createPhantomRoutes(File[] files)
+	public int applyRouteChanges()
 	{
-		if (files != null)
+		if (routeWatcher == null || playback || recording)
 		{
-			for (File singleFile : files)
+			return 0;
+		}
+		int applied = 0;
+		RouteWatcher.Change change;
+		while ((change = routeWatcher.poll()) != null)
+		{
+			if (applyRouteChange(change))
 			{
-				if (singleFile.isDirectory())
-				{
-					//If it's a directory, then make another call to this function to also iterate through THAT directory
-					createPhantomRoutes(singleFile.listFiles());
-				}
-				else
-				{
-					//Position of the "." in the file name
-					int dotIndex = singleFile.getName().lastIndexOf(".") + 1; 
-					
-					//Grab the "route" part of "file.route" (or any other other file extension, like "txt")
-					String extension = singleFile.getName().substring(dotIndex, singleFile.getName().length());
-					if (extension.equalsIgnoreCase("route"))
-					{
-						//Create a PhantomRoute for this .route file
-						PhantomRoute newPhantomRoute = new PhantomRoute(singleFile.getAbsolutePath());
-						
-						//Push that route onto the storedRoutes
-						storedRoutes.put(newPhantomRoute.getName(), newPhantomRoute);
-					}
-				}
+				applied++;
 			}
 		}
-		else
+		return applied;
+	}
+	
+	/**
+	 * @param change - a route file that was added, changed or deleted
+	 * @return - true if the stored routes changed
+	 */
+	private boolean applyRouteChange(RouteWatcher.Change change)
+	{
+		PhantomRoute existing = null;
+		for (PhantomRoute pr : storedRoutes.values())
 		{
-			print("No routes found. Create a route or most functions will not work correctly.");
+			if (pr.getPath().equals(change.path))
+			{
+				existing = pr;
+				break;
+			}
+		}
+		if (existing != null && existing.isDirty())
+		{
+			//Will be written back over the file when it's saved
+			print("Route " + existing.getName() + " changed on disk but has unsaved changes, keeping them.");
+			return false;
+		}
+		
+		if (change.entry == null)
+		{
+			if (existing == null)
+			{
+				return false;
+			}
+			storedRoutes.remove(existing.getName(), existing);
+			bodyCache.remove(existing);
+			print("Route " + existing.getName() + " was deleted from disk.");
+			if (existing == activeRoute)
+			{
+				//Saving it would bring the file back, and a mapped playback route points at a file that's gone
+				activeRoute = null;
+				playbackRoute = null;
+				print("No route is active, use setActiveRoute() to pick another.");
+			}
+			return true;
+		}
+		
+		if (existing != null)
+		{
+			if (existing.routeData.lastModified == change.entry.lastModified && existing.length() == change.entry.length)
+			{
+				//Our own save
+				return false;
+			}
+			storedRoutes.remove(existing.getName(), existing);
+			bodyCache.remove(existing);
+		}
+		addStoredRoute(new PhantomRoute(change.entry, bodyCache));
+		if (existing != null && existing == activeRoute)
+		{
+			//Swap in the new version of the active route. Not through setActiveRoute(), which would drain the changes again from inside this drain,
+			//and without unpinning the old version, which would put its timeline back in the cache
+			activeRoute = null;
+			selectActiveRoute(change.entry.name);
+		}
+		print("Route " + change.entry.name + " was " + (existing == null ? "added" : "reloaded") + " from disk.");
+		return true;
+	}
+	
+	/**
+	 * Stops watching the route folder. Routes copied onto the robot after this are only found by the next PhantomJoystick
+	 */
+	public void stopWatchingRoutes()
+	{
+		if (routeWatcher != null)
+		{
+			try
+			{
+				routeWatcher.close();
+			}
+			catch (IOException e)
+			{
+				log.warn("Could not stop watching " + saveFolder + ". " + e.getMessage());
+			}
+			routeWatcher = null;
+		}
+	}
+	
+	/**
+	 * Adds a route found on the file system, unless another file already gave a route that name
+	 * Two files share a name when a route was copied into a second folder. The one changed most recently is kept, and both are reported
+	 * @param route - route to add
+	 */
+	private void addStoredRoute(PhantomRoute route)
+	{
+		//Called from several threads at once, so swap routes in with compare-and-set rather than get then put
+		PhantomRoute existing;
+		while ((existing = storedRoutes.putIfAbsent(route.getName(), route)) != null)
+		{
+			if (route.routeData.lastModified <= existing.routeData.lastModified)
+			{
+				log.warn("Duplicate route " + route.getName() + " at " + route.getPath() + ", keeping the one at " + existing.getPath() + ".");
+				return;
+			}
+			if (storedRoutes.replace(route.getName(), existing, route))
+			{
+				log.warn("Duplicate route " + route.getName() + " at " + existing.getPath() + ", keeping the one at " + route.getPath() + ".");
+				return;
+			}
 		}
 	}
 	
@@ -114,32 +304,190 @@ public class PhantomJoystick
 	 */
 	private void print(String input)
 	{
-		if (allowPrintouts == true)
-		{
-			System.out.println("PhantomJoystick: " + input);
-		}
+		log.info(input);
 	}
 	
 	/**
 	 * Stops functions from echoing when called.
-	 * Printouts are enabled by default and cannot be re-enabled after calling this
+	 * Printouts are enabled by default and can be re-enabled with setLogLevel()
 	 */
 	public void disablePrintouts()
 	{
-		allowPrintouts = false;
+		log.setLevel(Logger.Level.OFF);
+	}
+	
+	/**
+	 * @param level - the most talkative printouts to allow. DEBUG includes values read every recording cycle
+	 */
+	public void setLogLevel(Logger.Level level)
+	{
+		log.setLevel(level);
 	}
 	
 	/**
-	 * Save each PhantomRoute
+	 * Makes playback read straight from the active route's file through a memory map instead of from the heap
+	 * Binary route files are read in place, and encoded ones are decoded as playback goes (see StreamingPhantomRoute). Json routes keep playing from the heap
+	 * @param mappedPlayback - true to map routes when they're made active
+	 */
+	public void setMappedPlayback(boolean mappedPlayback)
+	{
+		this.mappedPlayback = mappedPlayback;
+		preparePlaybackRoute();
+	}
+	
+	/**
+	 * Makes recordings append each measurement to a journal next to the route file as it's recorded
+	 * If the robot browns out or the code crashes partway through, the recording is recovered the next time the route is loaded
+	 * @param streamingRecording - true to journal recordings
+	 */
+	public void setStreamingRecording(boolean streamingRecording)
+	{
+		this.streamingRecording = streamingRecording;
+	}
+	
+	/**
+	 * Makes recordings take measurements at a fixed rate on their own high priority thread, instead of whenever recordPeriodic() is called
+	 * Measurements are then evenly spaced and timed by the monotonic clock, however long the robot loop takes. See RecordingScheduler
+	 * recordPeriodic() must still be called every cycle: the scheduler thread only hands measurements over through a SampleRing,
+	 * and recordPeriodic() adds them to the route and journal on the robot thread. The active route must not be changed until recordStop()
+	 * Cannot be changed while recording
+	 * @param periodMs - time between measurements, e.g. 10 for 100Hz. 0 to go back to recording from recordPeriodic()
+	 */
+	public void setFixedRateRecording(double periodMs)
+	{
+		if (recording)
+		{
+			print("Cannot change the recording rate while recording.");
+			return;
+		}
+		recordingPeriodNanos = Math.max(Math.round(periodMs * 1_000_000), 0);
+	}
+	
+	/**
+	 * Picks what playback reads from for the active route. Maps the active route's file when mapped playback is on and the file is binary or encoded
+	 * Only maps a route that isn't dirty. A dirty route has changes the file doesn't, e.g. a recording whose save is still queued or being written,
+	 * so it plays from memory until playbackInit() finds the save has landed
+	 */
+	private void preparePlaybackRoute()
+	{
+		playbackRoute = activeRoute;
+		//The route stops being dirty only once a write of its latest changes has finished, so a clean route's file is up to date
+		if (mappedPlayback && activeRoute != null && !activeRoute.isDirty() && activeRoute.getFormat() != RouteFormat.JSON && new File(activeRoute.getPath()).exists())
+		{
+			try
+			{
+				if (activeRoute.getFormat() == RouteFormat.ENCODED)
+				{
+					playbackRoute = new StreamingPhantomRoute(activeRoute.getPath());
+				}
+				else
+				{
+					playbackRoute = new MappedPhantomRoute(activeRoute.getPath());
+				}
+			}
+			catch (IOException e)
+			{
+				log.warn("Could not map " + activeRoute.getName() + ", playing it from memory instead. " + e.getMessage());
+			}
+		}
+	}
+	
+	/**
+	 * Smooths axis values during playback, so routes play back evenly even when the loop runs at a different rate than they were recorded at
+	 * Routes can then be recorded with wider spacing and still play back smoothly. Buttons are always played back as recorded
+	 * @param interpolation - STEP (the default) plays each recorded value until the next one, LINEAR and CUBIC fill in between them
+	 */
+	public void setInterpolation(Interpolation interpolation)
+	{
+		this.interpolation = interpolation;
+	}
+	
+	/**
+	 * @param budget - most bytes of inactive route timelines to keep in memory
+	 */
+	public void setRouteCacheBudget(long budget)
+	{
+		bodyCache.setBudget(budget);
+	}
+	
+	/**
+	 * @return - the cache holding inactive route timelines, e.g. to check its hit, miss and eviction counters
+	 */
+	public RouteBodyCache getRouteCache()
+	{
+		return bodyCache;
+	}
+	
+	/**
+	 * Save each PhantomRoute that changed, and wait for them to be written
+	 * Prints how many routes were written, how many bytes that took, and how long
 	 */
 	public void saveRoutes()
 	{
-		print("Saving routes.");
-		//Iterates through each PhantomRoute and saves it
+		int written = 0;
+		long bytes = 0;
+		long nanos = 0;
+		for (Future<PhantomRoute.SaveResult> save : saveRoutesAsync())
+		{
+			try
+			{
+				PhantomRoute.SaveResult result = save.get();
+				if (result.written)
+				{
+					written++;
+					bytes += result.bytes;
+					nanos += result.nanos;
+				}
+			}
+			catch (ExecutionException e)
+			{
+				//Already printed by the RoutePersistence
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				log.warn("Interrupted while waiting for routes to save.");
+				return;
+			}
+		}
+		print("Saved " + written + " route(s), " + bytes + " bytes in " + String.format("%.1f", nanos / 1e6) + "ms.");
+	}
+	
+	/**
+	 * Queue each PhantomRoute that changed to be saved in the background. Returns without waiting for the file system
+	 * Routes whose latest changes are already on disk are skipped without being copied, so this costs about as much as the routes that changed
+	 * @return - one save per route that changed, each completing once that route is on disk
+	 */
+	public ArrayList<Future<PhantomRoute.SaveResult>> saveRoutesAsync()
+	{
+		ArrayList<Future<PhantomRoute.SaveResult>> saves = new ArrayList<Future<PhantomRoute.SaveResult>>();
 		for (PhantomRoute pr : storedRoutes.values())
 		{
-			pr.save();
+			if (pr.isDirty())
+			{
+				saves.add(persistence.save(pr));
+			}
 		}
+		print("Saving " + saves.size() + " of " + storedRoutes.size() + " route(s).");
+		return saves;
+	}
+	
+	/**
+	 * Queue the active route to be saved in the background
+	 * @return - completes with how much was written once the route is on disk, for callers that need to know
+	 */
+	public Future<PhantomRoute.SaveResult> saveRouteAsync()
+	{
+		return persistence.save(activeRoute);
+	}
+	
+	/**
+	 * Blocks until every save queued so far is on disk
+	 * @throws InterruptedException - if interrupted while waiting
+	 */
+	public void flushRoutes() throws InterruptedException
+	{
+		persistence.flush();
 	}
 	
 	/**
@@ -151,13 +499,38 @@ public class PhantomJoystick
 	 * @param timeSpacing - Must be at least 30ms
 	 */
 	public void createRoute(String title, String robot, String desc, String role)
+	{
+		createRoute(title, robot, desc, role, ChannelSchema.DEFAULT);
+	}
+	
+	/**
+	 * Creates a route that only records some of the joystick's inputs, or more than the default ones
+	 * E.g. ChannelSchema.of(joystick) records everything the joystick has, including its POV hats
+	 * @param title
+	 * @param robot
+	 * @param desc
+	 * @param role
+	 * @param schema - which axes, buttons and POVs to record. Ignored if the route already exists and has measurements
+	 */
+	public void createRoute(String title, String robot, String desc, String role, ChannelSchema schema)
 	{
 		//Ensures that the route folder exists
-		File folder = new File(routeFolder);
+		File folder = new File(saveFolder);
 		//Create a new PhantomRoute file
-		PhantomRoute newPhantomRoute = new PhantomRoute(title, robot, desc, role, routeFolder);
-		//Add this new route to the index
-		storedRoutes.put(newPhantomRoute.getName(), newPhantomRoute);
+		PhantomRoute newPhantomRoute = new PhantomRoute(title, robot, desc, role, saveFolder);
+		if (newPhantomRoute.length() == 0)
+		{
+			newPhantomRoute.setSchema(schema);
+		}
+		else if (!schema.equals(newPhantomRoute.getSchema()))
+		{
+			print("Route " + newPhantomRoute.getName() + " already has measurements, it keeps its schema (" + newPhantomRoute.getSchema() + ").");
+		}
+		//Add this new route to the index, unless a route by that name is already there
+		if (storedRoutes.putIfAbsent(newPhantomRoute.getName(), newPhantomRoute) != null)
+		{
+			print("Route " + newPhantomRoute.getName() + " already exists, use setActiveRoute() to record over it.");
+		}
 	}
 	
 	/**
@@ -166,7 +539,29 @@ public class PhantomJoystick
 	 */
 	public void setActiveRoute(String routeName)
 	{
+		applyRouteChanges();
+		selectActiveRoute(routeName);
+	}
+	
+	/**
+	 * Makes a stored route active without first applying route changes. Used by applyRouteChange() to swap in a reloaded route
+	 * @param routeName - name of the route to set to being active
+	 */
+	private void selectActiveRoute(String routeName)
+	{
+		if (activeRoute != null)
+		{
+			//Give the old route's timeline back to the cache
+			activeRoute.unpin();
+		}
 		activeRoute = storedRoutes.get(routeName);
+		preparePlaybackRoute();
+		
+		//Read the timeline now rather than on the first read of the autonomous period, and keep it out of the cache's reach. Not needed when playback reads from a mapped file
+		if (activeRoute != null && playbackRoute == activeRoute)
+		{
+			activeRoute.pin();
+		}
 		//print("Active route is now " + routeName + ".");
 	}
 	
@@ -179,28 +574,195 @@ public class PhantomJoystick
 	}
 	
 	/**
+	 * Moves the playback index up to the current playback time
+	 * Call once at the start of every cycle during playback. Every getRawAxis and getRawButton call after this will read from the same measurement until the next call
+	 * Optional: if this is never called, every getRawAxis and getRawButton call moves the index itself
+	 */
+	public void playbackPeriodic()
+	{
+		if (playback == true)
+		{
+			playbackLatched = true;
+			advancePlayback();
+		}
+	}
+	
+	/**
+	 * Moves the playback cursor forward to the current time, and stops playback if that's past the end of the route
+	 * @return - true if the playback index points at a valid measurement
+	 */
+	private boolean advancePlayback()
+	{
+		//Convert the playbackTime to an index value for that time, continuing from where the last cycle left off
+		long playbackNanos = System.nanoTime() - startNanos;
+		playbackTime = playbackNanos / (double)RouteTimeline.NANOS_PER_MS;
+		playbackIndex = playbackRoute.indexFromTimeNanos(playbackNanos, playbackIndex);
+		
+		//If its a valid index
+		if (playbackIndex <= playbackRoute.lastIndex())
+		{
+			return true;
+		}
+		else
+		{
+			print("Playback has ended.");
+			playbackStop();
+			return false;
+		}
+	}
+	
+	/**
+	 * @return - true if the playback index can be read from this call
+	 */
+	private boolean playbackReady()
+	{
+		if (playback == false)
+		{
+			return false;
+		}
+		
+		//Without playbackPeriodic(), each read has to find its own index
+		if (playbackLatched == false)
+		{
+			return advancePlayback();
+		}
+		return true;
+	}
+	
+	/**
+	 * Reads device 0. See getDevice() for the others
 	 * @param channel - the axis number to get the value for
-	 * @return - the most appropriate value for the current time since playback started
+	 * @return - the most appropriate value for the current time since playback started. 0 if the route doesn't record that axis
 	 */
 	public double getRawAxis(int channel)
 	{
-		if (playback == true)
+		return getRawAxis(0, channel);
+	}
+	
+	/**
+	 * Reads device 0. See getDevice() for the others
+	 * @param channel - the button number to get the value for, starting at 1 like Joystick.getRawButton()
+	 * @return - the most appropriate value for the current time since playback started. false if the route doesn't record that button
+	 */
+	public boolean getRawButton(int channel)
+	{
+		return getRawButton(0, channel);
+	}
+	
+	/**
+	 * Reads device 0. See getDevice() for the others
+	 * @param pov - the POV number to get the value for
+	 * @return - the angle in degrees at the current time since playback started, or -1 if it isn't pressed or the route doesn't record that POV
+	 */
+	public int getPOV(int pov)
+	{
+		return getPOV(0, pov);
+	}
+	
+	/**
+	 * @return - the angle of POV 0, the same as getPOV(0)
+	 */
+	public int getPOV()
+	{
+		return getPOV(0, 0);
+	}
+	
+	/**
+	 * Reads one recorded joystick out of the active route. Every device reads the same measurement, so they stay in step
+	 * Keep the view rather than getting it every cycle
+	 * @param device - which joystick, in the order they were passed to the constructor. 0 reads the same as this PhantomJoystick
+	 * @return - a view that reads that device's axes, buttons and POVs
+	 */
+	public DeviceView getDevice(int device)
+	{
+		return new DeviceView(device);
+	}
+	
+	/**
+	 * One joystick out of a route recorded from several. Reads follow playback of the PhantomJoystick it came from
+	 *
+	 * Example Usage:
+	 *  PhantomJoystick.DeviceView operator = phantomJoystick.getDevice(1);
+	 *  ...
+	 *  phantomJoystick.playbackPeriodic();
+	 *  drive(phantomJoystick.getRawAxis(1));
+	 *  elevator(operator.getRawAxis(5));
+	 */
+	public class DeviceView
+	{
+		/** Which joystick this reads */
+		private final int device;
+		
+		private DeviceView(int device)
 		{
-			//Convert the playbackTime to an index value for that time
-			int playbackIndex = activeRoute.indexFromTime((int)(timer.get() * 1000));
-			
-			//If its a valid index
-			if (playbackIndex <= activeRoute.lastIndex())
+			this.device = device;
+		}
+		
+		/**
+		 * @return - which joystick this reads
+		 */
+		public int getDevice()
+		{
+			return device;
+		}
+		
+		/**
+		 * @param channel - the axis number to get the value for
+		 * @return - the most appropriate value for the current time since playback started. 0 if the route doesn't record that axis
+		 */
+		public double getRawAxis(int channel)
+		{
+			return PhantomJoystick.this.getRawAxis(device, channel);
+		}
+		
+		/**
+		 * @param channel - the button number to get the value for, starting at 1
+		 * @return - the most appropriate value for the current time since playback started. false if the route doesn't record that button
+		 */
+		public boolean getRawButton(int channel)
+		{
+			return PhantomJoystick.this.getRawButton(device, channel);
+		}
+		
+		/**
+		 * @param pov - the POV number to get the value for
+		 * @return - the angle in degrees, or -1 if it isn't pressed or the route doesn't record that POV
+		 */
+		public int getPOV(int pov)
+		{
+			return PhantomJoystick.this.getPOV(device, pov);
+		}
+		
+		/**
+		 * @return - the angle of POV 0
+		 */
+		public int getPOV()
+		{
+			return PhantomJoystick.this.getPOV(device, 0);
+		}
+	}
+	
+	/**
+	 * @param device - which joystick
+	 * @param channel - the axis number to get the value for
+	 * @return - the most appropriate value for the current time since playback started. 0 if the route doesn't record that axis
+	 */
+	private double getRawAxis(int device, int channel)
+	{
+		if (playbackReady())
+		{
+			int column = playbackRoute.getSchema().axisColumn(device, channel);
+			if (column < 0)
 			{
-				//Return the data at that index
-				return activeRoute.getAnalog(channel, playbackIndex);
+				return 0;
 			}
-			else
+			if (interpolation != Interpolation.STEP)
 			{
-				System.out.println("Playback has ended.");
-				playbackStop();
-				return 0;
+				//Fill in between the measurements around the playback time
+				return playbackRoute.interpolateAnalog(column, playbackTime, playbackIndex, interpolation);
 			}
+			//Return the data at that index
+			return playbackRoute.getAnalog(column, playbackIndex);
 		}
 		else
 		{
@@ -210,18 +772,17 @@ public class PhantomJoystick
 	}
 	
 	/**
-	 * @param channel - the button number to get the value for
-	 * @return - the most appropriate value for the current time since playback started
+	 * @param device - which joystick
+	 * @param channel - the button number to get the value for, starting at 1
+	 * @return - the most appropriate value for the current time since playback started. false if the route doesn't record that button
 	 */
-	public boolean getRawButton(int channel)
+	private boolean getRawButton(int device, int channel)
 	{
-		if (playback == true)
+		if (playbackReady())
 		{
-			//Convert the playbackTime to an index value for that time
-			int playbackIndex = activeRoute.indexFromTime((int)(timer.get() * 1000));
-			
+			int bit = playbackRoute.getSchema().buttonBit(device, channel);
 			//Return the data at that index
-			return activeRoute.getDigital(channel, playbackIndex);
+			return bit >= 0 && playbackRoute.getDigital(bit, playbackIndex);
 		}
 		else
 		{
@@ -230,6 +791,25 @@ public class PhantomJoystick
 		}
 	}
 	
+	/**
+	 * @param device - which joystick
+	 * @param pov - the POV number to get the value for
+	 * @return - the angle in degrees at the current time since playback started, or -1 if it isn't pressed or the route doesn't record that POV
+	 */
+	private int getPOV(int device, int pov)
+	{
+		if (playbackReady())
+		{
+			int column = playbackRoute.getSchema().povColumn(device, pov);
+			//POVs are never interpolated, a direction in between two others wasn't pressed
+			return (column < 0) ? -1 : (int)playbackRoute.getAnalog(column, playbackIndex);
+		}
+		else
+		{
+			return -1;
+		}
+	}
+	
 	/**
 	 * Initiates recording. Values from the passed joystick will be watched
 	 * @param override - Clears out the data first if passed
@@ -242,10 +822,59 @@ public class PhantomJoystick
 			{
 				this.clearRoute();
 			}
+			//Only allocate when the schema changes, so recording into the same route again reuses the buffer
+			recordingSchema = activeRoute.getSchema();
+			if (analogBuffer.length != recordingSchema.getAnalogChannelCount())
+			{
+				analogBuffer = new double[recordingSchema.getAnalogChannelCount()];
+			}
+			if (analogSources.length != recordingSchema.getAnalogChannelCount())
+			{
+				analogSources = new Joystick[recordingSchema.getAnalogChannelCount()];
+			}
+			if (buttonSources.length != recordingSchema.getDigitalChannelCount())
+			{
+				buttonSources = new Joystick[recordingSchema.getDigitalChannelCount()];
+			}
+			//Look up each channel's joystick once, so each cycle only reads the channels the route records
+			for (int a = 0; a < analogSources.length; a++)
+			{
+				analogSources[a] = recordingJoystick(recordingSchema.getAnalogDevice(a));
+			}
+			for (int d = 0; d < buttonSources.length; d++)
+			{
+				buttonSources[d] = recordingJoystick(recordingSchema.getButtonDevice(d));
+			}
+			if (recordingSchema.getDeviceCount() > recordingJoysticks.length)
+			{
+				log.warn("Route " + activeRoute.getName() + " records " + recordingSchema.getDeviceCount() + " joysticks but only " + recordingJoysticks.length + " were given, the rest are recorded at rest");
+			}
+			//Grow the timelines now instead of partway through the recording
+			activeRoute.ensureCapacity(activeRoute.length() + RouteTimeline.DEFAULT_CAPACITY);
+			if (streamingRecording)
+			{
+				try
+				{
+					activeRoute.startStreaming();
+				}
+				catch (IOException e)
+				{
+					log.warn("Could not start a journal for " + activeRoute.getName() + ", recording to memory only. " + e.getMessage());
+				}
+			}
 			print("Recording started.");
-			timer.reset();
-			timer.start();
+			recordedNanos = 0;
 			recording = true;
+			if (recordingPeriodNanos > 0)
+			{
+				recordingRing = new SampleRing((int)Math.max(RING_NANOS / recordingPeriodNanos, 16), analogBuffer.length);
+				recordingScheduler = new RecordingScheduler(recordingPeriodNanos, this::publishMeasurement);
+				recordingScheduler.start();
+			}
+			else
+			{
+				startNanos = System.nanoTime();
+			}
 		}
 	}
 	
@@ -262,56 +891,139 @@ public class PhantomJoystick
 	/**
 	 * Records joystick values at proper times. Must be called rapidly and periodically to function
 	 * This function appends data onto the end of the timelines
+	 * Allocates nothing once the timelines have room, which recordInit() makes sure of for the first 15 seconds
+	 * During a fixed rate recording this adds the measurements the scheduler took since the last call instead. See setFixedRateRecording()
 	 */
 	public void recordPeriodic()
 	{
-		//System.out.println("PhantomJoystick.recording: " + recording);
 		if (recording == true)
 		{
-			//Contains all the analog values from this measurement cycle
-			Double[] analogValues = new Double[RouteData.analogChannelCount];
-			
-			//For each possible analog input
-			for (int a = 0; a < analogValues.length; a++)
+			if (recordingScheduler == null)
 			{
-				//Populate the array with axis values
-				System.out.println("joystick@axis:" + a + ": " + recordingJoystick.getRawAxis(a));
-				analogValues[a] = recordingJoystick.getRawAxis(a);
+				//Timed from recordInit(), so spacing comes from one clock instead of a sum of per-cycle readings
+				int digitalMask = sampleChannels();
+				addMeasurement(analogBuffer, digitalMask, System.nanoTime() - startNanos);
 			}
-			
-			//Contains all the digital values from this measurement cycle
-			Boolean[] digitalValues = new Boolean[RouteData.digitalChannelCount];
-			
-			//For each possible digital input
-			for (int d = 0; d < digitalValues.length; d++)
+			else
 			{
-				//Populate the array with button values
-				digitalValues[d] = recordingJoystick.getRawButton(d + 1);
+				recordingRing.drain(ringSink, Integer.MAX_VALUE);
 			}
-			
-			//The milliseconds that have passed since last measurement
-			int msSinceLastMeasurement = (int)(timer.get() * 1000);
-			
-			//Add the newly recorded values
-			activeRoute.add(analogValues, digitalValues, msSinceLastMeasurement);
-			
-			//IMPORTANT: reset the timer.
-			timer.reset();
 		}
 	}
 	
+	/**
+	 * Takes a measurement on the scheduler thread and hands it to the robot thread. Never blocks, so a slow robot loop can't delay sampling
+	 * @param elapsedNanos - time since recording started, in ns
+	 */
+	private void publishMeasurement(long elapsedNanos)
+	{
+		int digitalMask = sampleChannels();
+		//A full ring drops the measurement and counts it; the next one's spacing covers the gap
+		recordingRing.offer(analogBuffer, digitalMask, elapsedNanos);
+	}
+	
+	/**
+	 * Reads every channel of the recording schema into analogBuffer
+	 * Runs on the robot thread from recordPeriodic(), or on the scheduler thread during a fixed rate recording
+	 * @return - the recorded buttons, bit n is the schema's button n
+	 */
+	private int sampleChannels()
+	{
+		//For each analog input the route records, on whichever joystick it belongs to
+		for (int a = 0; a < analogBuffer.length; a++)
+		{
+			//Populate the array with axis values, or POV angles after the axes
+			Joystick source = analogSources[a];
+			int input = recordingSchema.getAnalogInput(a);
+			if (source == null)
+			{
+				analogBuffer[a] = recordingSchema.restValue(a);
+			}
+			else if (recordingSchema.getAnalogType(a) == ChannelSchema.Type.AXIS)
+			{
+				analogBuffer[a] = source.getRawAxis(input);
+			}
+			else
+			{
+				analogBuffer[a] = source.getPOV(input);
+			}
+		}
+		
+		//All the digital values from this measurement cycle, bit n is the schema's button n
+		int digitalMask = 0;
+		
+		//For each digital input the route records
+		for (int d = 0; d < buttonSources.length; d++)
+		{
+			if (buttonSources[d] != null && buttonSources[d].getRawButton(recordingSchema.getButton(d)))
+			{
+				digitalMask |= (1 << d);
+			}
+		}
+		return digitalMask;
+	}
+	
+	/**
+	 * Adds a measurement to the active route. Always runs on the robot thread
+	 * @param analogValues - the measurement's analog values, copied by the route
+	 * @param digitalMask - the measurement's buttons
+	 * @param elapsedNanos - time since recording started, in ns
+	 */
+	private void addMeasurement(double[] analogValues, int digitalMask, long elapsedNanos)
+	{
+		//Spacing is kept to the ns, so the route's timestamps are exactly the clock readings and nothing is lost to rounding
+		long nanosSinceLastMeasurement = elapsedNanos - recordedNanos;
+		recordedNanos = elapsedNanos;
+		
+		//Add the newly recorded values. The route copies them out of the buffer
+		activeRoute.addNanos(analogValues, digitalMask, nanosSinceLastMeasurement);
+		
+		//Only build the message when it will actually be printed
+		if (log.isEnabled(Logger.Level.DEBUG))
+		{
+			log.debug("recorded " + Arrays.toString(analogValues) + " buttons " + Integer.toBinaryString(digitalMask) + " after " + nanosSinceLastMeasurement / 1000 + "us");
+		}
+	}
+	
+	/**
+	 * @param device - device number from a schema
+	 * @return - the joystick recorded as that device, or null if there isn't one
+	 */
+	private Joystick recordingJoystick(int device)
+	{
+		return (device < recordingJoysticks.length) ? recordingJoysticks[device] : null;
+	}
+	
 	/**
 	 * Stops recording
-	 * Saves all PhantomRoutes
+	 * Queues all changed PhantomRoutes to be saved in the background. Use flushRoutes() to wait for them
 	 */
 	public void recordStop()
 	{
 		if (recording == true)
 		{
+			if (recordingScheduler != null)
+			{
+				//Waits for a measurement being taken, so nothing is offered past this point. Then add whatever the robot thread hasn't yet
+				recordingScheduler.close();
+				recordingRing.drain(ringSink, Integer.MAX_VALUE);
+				print("Fixed rate recording took " + recordingScheduler.getTicks() + " measurements, skipped " + recordingScheduler.getOverruns()
+					+ ", failed " + recordingScheduler.getFailures() + ", and was at most " + recordingScheduler.getMaxLatenessNanos() / 1000 + "us late.");
+				if (recordingRing.getOverflows() > 0)
+				{
+					log.warn(recordingRing.getOverflows() + " measurements were dropped because recordPeriodic() wasn't called for over " + RING_NANOS / 1_000_000 + "ms");
+				}
+				log.debug("At most " + recordingRing.getHighWaterMark() + " of " + recordingRing.capacity() + " measurements waited for recordPeriodic()");
+				recordingScheduler = null;
+				recordingRing = null;
+			}
 			recording = false;
-			timer.stop();
-			timer.reset();
-			saveRoutes();
+			//Whatever is left in the journal gets written out. The save below folds it into the route file
+			activeRoute.stopStreaming();
+			saveRoutesAsync();
+			
+			//The file is being rewritten in the background, so any mapping of it is out of date. Play from memory until the route is set again
+			playbackRoute = activeRoute;
 		}
 	}
 	
@@ -322,10 +1034,20 @@ public class PhantomJoystick
 	{
 		if (recording == false)
 		{
+			applyRouteChanges();
+			if (mappedPlayback && activeRoute != null && playbackRoute == activeRoute && !activeRoute.isDirty())
+			{
+				//Played from memory while a save was pending, and the save has landed since. Map the new file and let the cache have the timeline back
+				preparePlaybackRoute();
+				if (playbackRoute != activeRoute)
+				{
+					activeRoute.unpin();
+				}
+			}
 			print("Playback initiated.");
-			timer.reset();
-			timer.start();
+			startNanos = System.nanoTime();
 			playbackIndex = 0;
+			playbackLatched = false;
 			playback = true;
 		}
 	}
@@ -339,8 +1061,6 @@ public class PhantomJoystick
 		{
 			print("Playback stopped.");
 			playback = false;
-			timer.stop();
-			timer.reset();
 		}
 	}
 	
@@ -372,7 +1092,8 @@ public class PhantomJoystick
 	{
 		activeRoute.delete();
 		storedRoutes.remove(activeRoute.getName());
-		print("Removed route " + activeRoute + ".");
+		bodyCache.remove(activeRoute);
+		print("Removed route " + activeRoute.getName() + ".");
 	}
 	
 	/**
@@ -381,7 +1102,24 @@ public class PhantomJoystick
 	public void clearRoute()
 	{
 		activeRoute.clear();
-		activeRoute.save();
+		persistence.save(activeRoute);
+		playbackRoute = activeRoute;
+	}
+	
+	/**
+	 * Drops measurements from the active route that don't change how it plays back, and cuts idle time off its start and end
+	 * Pick the mode to match setInterpolation(): DEAD_BAND for STEP, RDP for LINEAR or CUBIC
+	 * @param tolerance - largest difference allowed on any axis, e.g. 0.02. POVs and buttons are kept exact
+	 * @param mode - how measurements are chosen
+	 * @return - how many measurements were dropped, and the largest error that caused
+	 */
+	public RouteCompactor.Result compactRoute(double tolerance, RouteCompactor.Mode mode)
+	{
+		RouteCompactor.Result result = activeRoute.compact(activeRoute.getSchema().tolerances(tolerance), mode, true);
+		persistence.save(activeRoute);
+		playbackRoute = activeRoute;
+		print("Compacted route " + activeRoute.getName() + ": " + result + ".");
+		return result;
 	}
 	
 	/**
@@ -407,33 +1145,63 @@ public class PhantomJoystick
 	 */
 	public String getAllOverviews()
 	{
-		String tableStr = "";
-		tableStr += "+------------------------------------------------------------------------+" + "\n";
-		tableStr += "|                           # " + "Phantom Routes" + " #                           |" + "\n";
-		tableStr += "+------------------------------------------------------------------------+" + "\n";
+		StringBuilder builder = new StringBuilder();
+		try
+		{
+			renderAllOverviews(builder);
+		}
+		catch (IOException e)
+		{
+			//A StringBuilder never throws
+			throw new UncheckedIOException(e);
+		}
+		return builder.toString();
+	}
+	
+	/**
+	 * Writes getAllOverviews() to a writer, a PrintStream, a StringBuilder etc. one route at a time, without building it as a String first
+	 * Routes are described from the catalog, so no timelines are read
+	 * @param out - where to write the table
+	 * @throws IOException - if out throws
+	 */
+	public void renderAllOverviews(Appendable out) throws IOException
+	{
+		applyRouteChanges();
+		out.append("+------------------------------------------------------------------------+\n");
+		out.append("|                           # Phantom Routes #                           |\n");
+		out.append("+------------------------------------------------------------------------+\n");
 		
 		//Go through each stored PhantomRoute
 		for (PhantomRoute pr : storedRoutes.values())
 		{
-			tableStr += pr.getOverview() + "\n";
-			tableStr += "+------------------------------------------------------------------------+" + "\n";
+			pr.renderOverview(out);
+			out.append('\n');
+			out.append("+------------------------------------------------------------------------+\n");
 			
 			//If active route and the the iterated route reference the same object
 			if (pr == activeRoute)
 			{
-				tableStr += "|                      ^ ^ ^ ^ " + "Active Route " + " ^ ^ ^ ^                      |" + "\n";
-				tableStr += "+------------------------------------------------------------------------+" + "\n";
+				out.append("|                      ^ ^ ^ ^ Active Route  ^ ^ ^ ^                      |\n");
+				out.append("+------------------------------------------------------------------------+\n");
 			}
 		}
-		return tableStr;
 	}
 	
 	/**
-	 * Prints getRouteTable()
+	 * Prints getAllOverviews(), one route at a time
 	 */
 	public void printAllOverviews()
 	{
 		//No print() function used because it has enough preface already, and also doesnt need to be enabled/disabled
-		System.out.println(getAllOverviews());
+		try
+		{
+			renderAllOverviews(System.out);
+		}
+		catch (IOException e)
+		{
+			//A PrintStream never throws
+			throw new UncheckedIOException(e);
+		}
+		System.out.println();
 	}
 }
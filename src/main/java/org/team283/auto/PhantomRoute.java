@@ -1,18 +1,20 @@
 package org.team283.auto;
 
 
-import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.util.ArrayList;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
 import java.util.Date;
-
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 /**
@@ -47,7 +49,6 @@ import com.google.gson.GsonBuilder;
  *  
  *  
  *  TODO: auto-save after operations?
- *  TODO: function to cut-out starting and ending blank values (to cut delays from the start of the autonomous) - hey thats pretty cool
  */
 public class PhantomRoute 
 {	
@@ -57,26 +58,84 @@ public class PhantomRoute
 	/** The minimum ms needed for proper measurement */
 	public final static int MIN_TIME_SPACING = 30;
 	
+	/** Most measurements toString() lists. Use renderDump() to list more */
+	public final static int TO_STRING_ROW_LIMIT = 20;
+	
+	/**
+	 * What a save did
+	 */
+	public static class SaveResult
+	{
+		/** False if the route hadn't changed since it was last saved, so nothing was written */
+		public final boolean written;
+		
+		/** Size of the file written, in bytes. 0 if nothing was written */
+		public final long bytes;
+		
+		/** Time spent writing and forcing the file onto the flash, in ns */
+		public final long nanos;
+		
+		/** The route's generation that is now on disk. See getGeneration() */
+		public final long generation;
+		
+		SaveResult(boolean written, long bytes, long nanos, long generation)
+		{
+			this.written = written;
+			this.bytes = bytes;
+			this.nanos = nanos;
+			this.generation = generation;
+		}
+		
+		@Override
+		public String toString()
+		{
+			if (!written)
+			{
+				return "unchanged";
+			}
+			return bytes + " bytes in " + String.format("%.1f", nanos / 1e6) + "ms";
+		}
+	}
+	
 	/** Object that contains all actual data describing route of robot */
 	public RouteData routeData;
 	
 	/** The file on the RoboRIO that contains this route's data */
 	protected File file;
 	
-	/**  */
-	protected FileReader fileReader;
+	/** How the file is laid out. Routes keep the format they were loaded with, new routes are binary */
+	protected RouteFormat format = RouteFormat.BINARY;
+	
+	/** Counts changes to the timeline, schema or format since the route was created or loaded. See markChanged() */
+	private final AtomicLong generation = new AtomicLong();
+	
+	/** The newest generation that is on disk. The route is dirty while this is behind generation */
+	private final AtomicLong savedGeneration = new AtomicLong();
+	
+	/** Number of times writing this route's file failed. Counted on whichever thread did the writing */
+	private final AtomicInteger saveFailures = new AtomicInteger();
 	
-	/**  */
-	protected BufferedReader bufferedReader;
+	/** Open while streaming. Every added measurement is also appended here, see startStreaming() */
+	protected RouteJournal journal;
 	
-	/**  */
-	protected FileWriter fileWriter;
+	/** Holds the timeline of a cataloged route while it isn't pinned. null if this route always keeps its own timeline */
+	protected RouteBodyCache bodyCache;
 	
-	/**  */
-	protected BufferedWriter bufferedWriter;
+	/** Number of measurements according to the catalog. Used until the timeline is read */
+	protected int catalogLength = 0;
 	
-	/** Google-developed library for turning java objects into json and back */
-	protected Gson gson;
+	/** Duration in ms according to the catalog. Used until the timeline is read */
+	protected long catalogDuration = 0;
+	
+	/** Once a saved route has at least this many measurements, the journal next to it holds nothing new and can be deleted. -1 if there's no finished journal */
+	protected volatile int journalCoveredLength = -1;
+	
+	/**
+	 * Used by subclasses that fill in the route themselves
+	 */
+	protected PhantomRoute()
+	{
+	}
 	
 	/**
 	 * Used to create entirely new routes
@@ -106,17 +165,8 @@ public class PhantomRoute
 		
 		this.routeData.version = 1;
 		
-		//Using a GsonBuilder allows pretty printing to be set to true, meaning the output file will be more human-friendly to read
-		this.gson = new GsonBuilder().create();
-		
-		//There are 6 analog inputs on the robot
-		this.routeData.analog = new ArrayList<Double[]>(0);
-		
-		//There are 10 digital inputs on the robot
-		this.routeData.digital = new ArrayList<Boolean[]>(0);
-		
-		//
-		this.routeData.spacing = new ArrayList<Integer>(0);
+		//One column for each analog input of the default schema, and a bitmask for its digital inputs. See setSchema()
+		this.routeData.timeline = new RouteTimeline();
 		
 		//E.g. root\routes\2018_napalm_left_side.route
 		String fullPath = folder.toLowerCase() + File.separator + this.getName() + "." + PhantomRoute.EXTENSION;
@@ -131,6 +181,11 @@ public class PhantomRoute
 		{
 			this.initializeFromPath(fullPath);
 		}
+		else
+		{
+			//Nothing has been written yet
+			markChanged();
+		}
 	}
 	
 	/**
@@ -158,14 +213,38 @@ public class PhantomRoute
 		this.initializeFromPath(path);
 	}
 	
+	/**
+	 * Wraps a route found by the catalog without reading its timeline
+	 * The name, description, duration etc. are available straight away. The timeline is read from the file the first time it's needed, or when load() is called
+	 * @param entry - the catalog's description of the route file
+	 */
+	public PhantomRoute(RouteCatalog.Entry entry)
+	{
+		this(entry, null);
+	}
+	
+	/**
+	 * Wraps a route found by the catalog without reading its timeline, and keeps the timeline in a shared cache once it is read
+	 * The cache can drop the timeline again when it runs low on room, unless the route is pinned or has unsaved changes
+	 * @param entry - the catalog's description of the route file
+	 * @param bodyCache - cache to keep the timeline in. null to keep it in this route like any other
+	 */
+	public PhantomRoute(RouteCatalog.Entry entry, RouteBodyCache bodyCache)
+	{
+		this.file = new File(entry.path);
+		this.format = entry.format;
+		this.routeData = entry.toRouteData();
+		this.catalogLength = entry.length;
+		this.catalogDuration = entry.duration;
+		this.bodyCache = bodyCache;
+	}
+	
 	/**
 	 * Creates a new PhantomRoute as a copy of the passed PhantomRoute
 	 * @param phantomRoute - the PhantomRoute to be copied
 	 */
 	public PhantomRoute(PhantomRoute phantomRoute)
 	{
-		this.gson = new GsonBuilder().create();
-		
 		this.routeData = new RouteData();
 		
 		this.routeData.lastModified = new Date().getTime();
@@ -178,6 +257,14 @@ public class PhantomRoute
 		
 		this.routeData.version = phantomRoute.getVersion() + 1;
 		
+		this.routeData.schema = phantomRoute.getSchema();
+		
+		this.routeData.timeline = new RouteTimeline(phantomRoute.timeline());
+		
+		this.format = phantomRoute.format;
+		
+		markChanged();
+		
 		this.file = new File(phantomRoute.getFolder() + File.pathSeparator + this.getName() + "." + EXTENSION);
 	}
 	
@@ -187,44 +274,217 @@ public class PhantomRoute
 	 */
 	private void initializeFromPath(String path)
 	{
-		this.gson = new GsonBuilder().create();
-		
 		file = new File(path);
-		try 
+		
+		routeData = readFile();
+		recoverJournal(routeData.timeline, routeData.schema);
+	}
+	
+	/**
+	 * Reads the whole route file. Also sets the format to whatever the file turns out to be
+	 * If the file can't be read, reads the previous save that DurableFile kept next to it instead, and marks the route dirty so the file gets rewritten
+	 * @return - everything in the file, including the timeline
+	 * @throws UncheckedIOException - if neither the file nor its previous save can be read
+	 */
+	private RouteData readFile()
+	{
+		try
 		{
-			fileReader = new FileReader(file);
-		} 
-		catch (FileNotFoundException e) 
+			return readFile(file);
+		}
+		catch (IOException | RuntimeException e)
 		{
-			e.printStackTrace();
+			File backup = DurableFile.backupFor(file);
+			if (!backup.isFile())
+			{
+				throw (e instanceof IOException) ? new UncheckedIOException((IOException)e) : (RuntimeException)e;
+			}
+			System.out.println("PhantomRoute: could not read " + file + ", loading its previous save instead. " + e);
+			try
+			{
+				RouteData fileData = readFile(backup);
+				markChanged();
+				return fileData;
+			}
+			catch (IOException backupError)
+			{
+				throw new UncheckedIOException(backupError);
+			}
+		}
+	}
+	
+	/**
+	 * Reads a whole route file. Also sets the format to whatever the file turns out to be
+	 * @param source - the route file, or its previous save
+	 * @return - everything in the file, including the timeline
+	 * @throws IOException - if the file can't be read or is cut short
+	 */
+	private RouteData readFile(File source) throws IOException
+	{
+		//Binary and json routes share an extension, so check which one this is
+		format = RouteFormat.detect(source);
+		if (format != RouteFormat.JSON)
+		{
+			return BinaryRouteFile.read(source);
 		}
-		bufferedReader = new BufferedReader(fileReader);
-		routeData = gson.fromJson(bufferedReader, RouteData.class);
-		try 
+		
+		//JsonReader buffers on its own
+		try (Reader reader = new InputStreamReader(new FileInputStream(source), StandardCharsets.UTF_8))
 		{
-			bufferedReader.close();
-			fileReader.close();
-		} 
-		catch (IOException e) 
+			//The file stores one row per measurement, which gets unpacked into columns as it's read
+			return LegacyRouteJson.read(reader);
+		}
+	}
+	
+	/**
+	 * If a recording into this route was cut off before it could be saved, adds the measurements left in its journal
+	 * The route is marked dirty, and the journal is deleted once the route has been saved
+	 * @param timeline - the timeline just read from the file
+	 * @param schema - the schema just read from the file
+	 * @return - true if a journal was replayed
+	 */
+	private boolean recoverJournal(RouteTimeline timeline, ChannelSchema schema)
+	{
+		try
+		{
+			int recovered = RouteJournal.recover(file, timeline, schema);
+			if (recovered >= 0)
+			{
+				System.out.println("PhantomRoute: recovered " + recovered + " measurement(s) from the journal of " + getName());
+				markChanged();
+				journalCoveredLength = timeline.length();
+				return true;
+			}
+		}
+		catch (IOException e)
 		{
 			e.printStackTrace();
 		}
+		return false;
 	}
 	
 	/**
-	 * @param time - value in ms, the time that has passed since playback began
-	 * @return - Which value the timeline should spit out given the time 
+	 * Reads just the timeline from the file, leaving the name, description etc. as they are. Used by load() and the RouteBodyCache
+	 * If a journal had to be replayed or the previous save had to be read instead, the timeline has unsaved changes,
+	 * so this route keeps it instead of leaving it to the cache
+	 * @return - the timeline read from the file
 	 */
-	public int indexFromTime(int time)
+	RouteTimeline readTimeline()
+	{
+		RouteData fileData = readFile();
+		RouteTimeline timeline = fileData.timeline;
+		//Whatever the catalog said, the columns are laid out the way the file says
+		routeData.schema = fileData.schema;
+		if (recoverJournal(timeline, fileData.schema) || isDirty())
+		{
+			routeData.timeline = timeline;
+		}
+		return timeline;
+	}
+	
+	/**
+	 * Reads the timeline from the file, if it hasn't been read yet
+	 * Only routes that came from the catalog start out without their timeline
+	 */
+	public void load()
+	{
+		timeline();
+	}
+	
+	/**
+	 * @return - true if the timeline is in memory, false if it will be read from the file when it's next needed
+	 */
+	public boolean isLoaded()
+	{
+		return routeData.timeline != null || (bodyCache != null && bodyCache.contains(this));
+	}
+	
+	/**
+	 * @return - the timeline, read from the file first if needed
+	 */
+	protected RouteTimeline timeline()
+	{
+		RouteTimeline timeline = routeData.timeline;
+		if (timeline != null)
+		{
+			return timeline;
+		}
+		if (bodyCache != null)
+		{
+			return bodyCache.get(this);
+		}
+		routeData.timeline = readTimeline();
+		return routeData.timeline;
+	}
+	
+	/**
+	 * Takes the timeline out of the cache, so it stays in memory until unpin()
+	 * Used for the active route, so it can't be dropped partway through autonomous. Changing the timeline pins it too
+	 */
+	public void pin()
+	{
+		if (routeData.timeline == null)
+		{
+			routeData.timeline = timeline();
+			if (bodyCache != null)
+			{
+				bodyCache.remove(this);
+			}
+		}
+	}
+	
+	/**
+	 * Hands the timeline back to the cache, so it can be dropped when the cache needs room
+	 * Does nothing for routes without a cache, or with changes that haven't been saved
+	 */
+	public void unpin()
 	{
-		int msSinceStart = 0;
-		int i = 0;
-		while (msSinceStart < time)
+		if (bodyCache != null && routeData.timeline != null && !isDirty() && journal == null)
 		{
-			msSinceStart += routeData.spacing.get(i);
-			i++;
+			bodyCache.put(this, routeData.timeline);
+			routeData.timeline = null;
 		}
-		return i;
+	}
+	
+	/**
+	 * @param time - value in ms, the time that has passed since playback began
+	 * @return - Which value the timeline should spit out given the time. Past the last index once the time runs past the end of the route
+	 */
+	public int indexFromTime(int time)
+	{
+		return indexFromTimeNanos(time * RouteTimeline.NANOS_PER_MS);
+	}
+	
+	/**
+	 * Same as indexFromTime(time), but continues from an earlier result instead of searching the whole route
+	 * Use this when time only moves forwards, like during playback
+	 * @param time - value in ms, the time that has passed since playback began
+	 * @param previousIndex - a value returned by an earlier call with an earlier or equal time
+	 * @return - Which value the timeline should spit out given the time. Past the last index once the time runs past the end of the route
+	 */
+	public int indexFromTime(int time, int previousIndex)
+	{
+		return indexFromTimeNanos(time * RouteTimeline.NANOS_PER_MS, previousIndex);
+	}
+	
+	/**
+	 * @param time - value in ns, the time that has passed since playback began
+	 * @return - Which value the timeline should spit out given the time. Past the last index once the time runs past the end of the route
+	 */
+	public int indexFromTimeNanos(long time)
+	{
+		return timeline().indexFromTimeNanos(time);
+	}
+	
+	/**
+	 * Same as indexFromTimeNanos(time), but continues from an earlier result instead of searching the whole route
+	 * @param time - value in ns, the time that has passed since playback began
+	 * @param previousIndex - a value returned by an earlier call with an earlier or equal time
+	 * @return - Which value the timeline should spit out given the time. Past the last index once the time runs past the end of the route
+	 */
+	public int indexFromTimeNanos(long time, int previousIndex)
+	{
+		return timeline().indexFromTimeNanos(time, previousIndex);
 	}
 	
 	/**
@@ -234,7 +494,114 @@ public class PhantomRoute
 	 */
 	public double getAnalog(int channel, int index)
 	{
-		return routeData.analog.get(index)[channel];
+		return timeline().getAnalog(channel, index);
+	}
+	
+	/**
+	 * Reads an axis at any time, not just at the measured ones. O(1) and allocates nothing, so it can run every playback cycle
+	 * Before the first measurement and after the last one, the first and last values are held
+	 * @param channel - which axis to grab from
+	 * @param time - value in ms, the time that has passed since playback began. Can fall between milliseconds
+	 * @param index - indexFromTime() at about the same time, e.g. the playback cursor. Only used as a starting point
+	 * @param interpolation - how to fill in between measurements
+	 * @return - the axis value at that time
+	 */
+	public double interpolateAnalog(int channel, double time, int index, Interpolation interpolation)
+	{
+		int length = length();
+		//A POV angle in between two directions means nothing, so POVs always step
+		if (interpolation == Interpolation.STEP || getSchema().getAnalogType(channel) == ChannelSchema.Type.POV)
+		{
+			return getAnalog(channel, Math.max(Math.min(index, length - 1), 0));
+		}
+		if (length == 0)
+		{
+			return 0;
+		}
+		//Work in ns, so measurements taken less than a ms apart still interpolate
+		time *= RouteTimeline.NANOS_PER_MS;
+		if (length == 1 || time <= getTimestampNanos(0))
+		{
+			return getAnalog(channel, 0);
+		}
+		if (time >= getTimestampNanos(length - 1))
+		{
+			return getAnalog(channel, length - 1);
+		}
+		
+		//Find the measurements on either side of the time. indexFromTime() lands one past the later one, so this only moves a step or two
+		int after = Math.max(Math.min(index - 1, length - 1), 1);
+		while (after < length - 1 && getTimestampNanos(after) < time)
+		{
+			after++;
+		}
+		while (after > 1 && getTimestampNanos(after - 1) >= time)
+		{
+			after--;
+		}
+		int before = after - 1;
+		
+		double t0 = getTimestampNanos(before);
+		double t1 = getTimestampNanos(after);
+		double v0 = getAnalog(channel, before);
+		double v1 = getAnalog(channel, after);
+		double h = t1 - t0;
+		if (h <= 0)
+		{
+			return v1;
+		}
+		double s = (time - t0) / h;
+		if (interpolation == Interpolation.LINEAR)
+		{
+			return v0 + (v1 - v0) * s;
+		}
+		
+		//Slopes of this segment and its neighbours. The ends of the route use the slope of their only segment
+		double slope = (v1 - v0) / h;
+		double m0 = slope;
+		double m1 = slope;
+		if (before > 0)
+		{
+			double hBefore = t0 - getTimestampNanos(before - 1);
+			if (hBefore > 0)
+			{
+				m0 = monotoneTangent(hBefore, (v0 - getAnalog(channel, before - 1)) / hBefore, h, slope);
+			}
+		}
+		if (after < length - 1)
+		{
+			double hAfter = getTimestampNanos(after + 1) - t1;
+			if (hAfter > 0)
+			{
+				m1 = monotoneTangent(h, slope, hAfter, (getAnalog(channel, after + 1) - v1) / hAfter);
+			}
+		}
+		
+		//Cubic Hermite basis
+		double s2 = s * s;
+		double s3 = s2 * s;
+		return (2 * s3 - 3 * s2 + 1) * v0
+			+ (s3 - 2 * s2 + s) * h * m0
+			+ (-2 * s3 + 3 * s2) * v1
+			+ (s3 - s2) * h * m1;
+	}
+	
+	/**
+	 * Fritsch-Carlson tangent at a measurement, using a weighted harmonic mean of the slopes on either side
+	 * Flat at peaks and valleys, and small enough everywhere else that the curve can't overshoot
+	 * @param h0 - time from the previous measurement
+	 * @param d0 - slope from the previous measurement
+	 * @param h1 - time to the next measurement
+	 * @param d1 - slope to the next measurement
+	 * @return - the slope the curve should have at the measurement
+	 */
+	private static double monotoneTangent(double h0, double d0, double h1, double d1)
+	{
+		if (d0 * d1 <= 0)
+		{
+			return 0;
+		}
+		return 3 * (h0 + h1) / ((2 * h1 + h0) / d0 + (h1 + 2 * h0) / d1);
 	}
 	
 	/**
@@ -244,27 +611,186 @@ public class PhantomRoute
 	 */
 	public boolean getDigital(int channel, int index)
 	{
-		return routeData.digital.get(index)[channel];
+		return timeline().getDigital(channel, index);
 	}
 	
 	/**
 	 * @param index - the measurement in question
 	 * @return - In milliseconds, the duration, since the measurement before this one was taken. For index=0, its the time delay between the recording start and the first measurement.
+	 * The difference of the rounded timestamps, so the spacing of a route adds up to its duration
 	 */
 	public int getSpacing(int index)
 	{
-		return routeData.spacing.get(index);
+		return (int)(getTimestamp(index) - (index == 0 ? 0 : getTimestamp(index - 1)));
+	}
+	
+	/**
+	 * @param index - the measurement in question
+	 * @return - In nanoseconds, the duration since the measurement before this one was taken
+	 */
+	public long getSpacingNanos(int index)
+	{
+		return getTimestampNanos(index) - (index == 0 ? 0 : getTimestampNanos(index - 1));
+	}
+	
+	/**
+	 * Appends a measurement onto the end of the timelines
+	 * @param analogValues - one value per analog channel. Copied, so the array can be reused
+	 * @param digitalMask - button values, bit n is digital channel n
+	 * @param spacing - ms since the previous measurement
+	 */
+	public void add(double[] analogValues, int digitalMask, int spacing)
+	{
+		addNanos(analogValues, digitalMask, spacing * RouteTimeline.NANOS_PER_MS);
+	}
+	
+	/**
+	 * Appends a measurement onto the end of the timelines
+	 * @param analogValues - one value per analog channel. Copied, so the array can be reused
+	 * @param digitalMask - button values, bit n is digital channel n
+	 * @param spacingNanos - ns since the previous measurement
+	 */
+	public void addNanos(double[] analogValues, int digitalMask, long spacingNanos)
+	{
+		//Changes must never be dropped by the cache
+		pin();
+		routeData.timeline.addNanos(analogValues, digitalMask, spacingNanos);
+		//Not a new Date(), this runs every recording cycle
+		routeData.lastModified = System.currentTimeMillis();
+		markChanged();
+		
+		if (journal != null)
+		{
+			try
+			{
+				journal.append(analogValues, digitalMask, spacingNanos);
+			}
+			catch (IOException e)
+			{
+				//The measurement is still in memory, it just won't survive a crash. Don't take the robot loop down over it
+				e.printStackTrace();
+				stopStreaming();
+			}
+		}
+	}
+	
+	/**
+	 * Starts appending every added measurement to a journal next to the route file, so a recording survives the robot program crashing, and a brownout once streaming stops
+	 * Each add() then costs a buffered append, and the journal is written out every few measurements without waiting on the flash
+	 * @throws IOException - if the journal can't be created
+	 */
+	public void startStreaming() throws IOException
+	{
+		if (journal == null)
+		{
+			journal = new RouteJournal(file, length(), routeData.schema);
+			journalCoveredLength = -1;
+		}
+	}
+	
+	/**
+	 * Stops appending to the journal and writes out what's left in it, waiting until all of it is on the flash
+	 * The journal is deleted by the next save, which folds it into the route file. See compactJournal()
+	 */
+	public void stopStreaming()
+	{
+		if (journal != null)
+		{
+			try
+			{
+				journal.close();
+			}
+			catch (IOException e)
+			{
+				e.printStackTrace();
+			}
+			journal = null;
+			journalCoveredLength = length();
+		}
+	}
+	
+	/**
+	 * @return - true while added measurements are also being appended to a journal
+	 */
+	public boolean isStreaming()
+	{
+		return journal != null;
+	}
+	
+	/**
+	 * Stops streaming, then saves the whole route, which folds the journal into the route file and deletes it
+	 * @throws IOException - if the route can't be saved. The journal is kept
+	 */
+	public void compactJournal() throws IOException
+	{
+		stopStreaming();
+		save();
+	}
+	
+	/**
+	 * Makes room in the timelines so that adding up to the passed number of measurements doesn't have to grow them
+	 * @param capacity - total number of measurements to make room for
+	 */
+	public void ensureCapacity(int capacity)
+	{
+		pin();
+		routeData.timeline.ensureCapacity(capacity);
 	}
 	
+	/**
+	 * Appends a measurement onto the end of the timelines
+	 * @param analogValues - one value per analog channel
+	 * @param digitalValues - one value per digital channel
+	 * @param spacing - ms since the previous measurement
+	 */
+	public void add(double[] analogValues, boolean[] digitalValues, int spacing)
+	{
+		add(analogValues, RouteTimeline.packDigital(digitalValues), spacing);
+	}
+	
+	/**
+	 * Appends a measurement onto the end of the timelines
+	 * Kept for older callers, prefer the primitive versions
+	 * @param analogValues - one value per analog channel
+	 * @param digitalValues - one value per digital channel
+	 * @param spacing - ms since the previous measurement
+	 */
 	public void add(Double[] analogValues, Boolean[] digitalValues, int spacing)
 	{
-		routeData.analog.add(analogValues);
-		//System.out.println("analogValues: " + analogValues);
-		routeData.digital.add(digitalValues);
-		//System.out.println("digitalValues: " + digitalValues);
-		routeData.spacing.add(spacing);
-		//System.out.println("spacing: " + spacing + "ms");
-		routeData.lastModified = new Date().getTime();
+		double[] analogPrimitives = new double[analogValues.length];
+		for (int a = 0; a < analogValues.length; a++)
+		{
+			analogPrimitives[a] = analogValues[a];
+		}
+		
+		int digitalMask = 0;
+		for (int d = 0; d < digitalValues.length; d++)
+		{
+			if (digitalValues[d])
+			{
+				digitalMask |= (1 << d);
+			}
+		}
+		
+		add(analogPrimitives, digitalMask, spacing);
+	}
+	
+	/**
+	 * @param index - the measurement in question
+	 * @return - In milliseconds, the time from the start of the recording to that measurement, rounded to the nearest
+	 */
+	public long getTimestamp(int index)
+	{
+		return RouteTimeline.toMillis(getTimestampNanos(index));
+	}
+	
+	/**
+	 * @param index - the measurement in question
+	 * @return - In nanoseconds, the time from the start of the recording to that measurement
+	 */
+	public long getTimestampNanos(int index)
+	{
+		return timeline().getTimestampNanos(index);
 	}
 	
 	/**
@@ -274,18 +800,14 @@ public class PhantomRoute
 	 */
 	public int timeBetween(int firstIndex, int secondIndex)
 	{
-		//Total ms between values
-		int returnValue = 0;
-		
-		//Add up all the spacing values between those two
-		//firstIndex + 1 since the firstIndex spacing value isnt in this range
-		for (int i = firstIndex + 1; i <= secondIndex; i++)
+		//Nothing passes between a value and itself, or going backwards
+		if (secondIndex <= firstIndex)
 		{
-			returnValue += routeData.spacing.get(i);
+			return 0;
 		}
 		
-		//The total ms
-		return returnValue;
+		//The timestamps are running totals of the spacing values, so the difference is the sum of everything from firstIndex + 1 to secondIndex
+		return (int)(getTimestamp(secondIndex) - getTimestamp(firstIndex));
 	}
 	
 	/**
@@ -293,7 +815,11 @@ public class PhantomRoute
 	 */
 	public int length()
 	{
-		return routeData.spacing.size();
+		if (!isLoaded())
+		{
+			return catalogLength;
+		}
+		return timeline().length();
 	}
 	
 	/**
@@ -307,32 +833,128 @@ public class PhantomRoute
 	/**
 	 * If this is a new route, saves the route to the file system.
 	 * If this was a previous route that was re-contructed, then this updates the file, overwriting the new one
+	 * Runs on the calling thread. See RoutePersistence to save without waiting on the file system
+	 * The file is replaced atomically and its previous contents are kept as a fallback, see DurableFile
+	 * Always writes, even if nothing changed. RoutePersistence skips routes that aren't dirty
+	 * @return - how much was written and how long it took
+	 * @throws IOException - if the file can't be written. The file is left as it was and the route stays dirty, so the next save tries again
 	 */
-	public void save()
+	public SaveResult save() throws IOException
 	{
-		System.out.println("Saving! Current Status is:\n" + this);
-		try 
-		{
-			fileWriter = new FileWriter(file);
-		} 
-		catch (IOException e) 
+		//Routes from the catalog may have their timeline in the body cache or still on disk, so write a copy that points at it
+		RouteData data = routeData.timeline != null ? routeData : withTimeline(timeline());
+		SaveResult result = write(data, generation.get());
+		System.out.println("PhantomRoute: saved " + getName() + ", " + result + ".");
+		return result;
+	}
+	
+	/**
+	 * @return - number of times writing this route's file failed, from save() and RoutePersistence
+	 */
+	public int getSaveFailures()
+	{
+		return saveFailures.get();
+	}
+	
+	/**
+	 * @return - true if the timeline, schema or format changed since the route was loaded or last saved
+	 */
+	public boolean isDirty()
+	{
+		return generation.get() > savedGeneration.get();
+	}
+	
+	/**
+	 * Goes up by one with every change to the route, so a save can tell whether it wrote the route as it is now or an older copy of it
+	 * @return - number of changes since the route was created or loaded
+	 */
+	public long getGeneration()
+	{
+		return generation.get();
+	}
+	
+	/**
+	 * Marks the route as needing to be saved. Called by everything that changes the timeline, schema or format
+	 */
+	protected void markChanged()
+	{
+		generation.incrementAndGet();
+	}
+	
+	/**
+	 * Copies the route as it is right now, so that the copy can be written on another thread while this route keeps being recorded into
+	 * Read getGeneration() on the same thread and pass it to write() with the copy. The route stays dirty until a write of the copy succeeds
+	 * @return - a copy of the route data that nothing else references
+	 */
+	RouteData takeSnapshot()
+	{
+		return withTimeline(new RouteTimeline(timeline()));
+	}
+	
+	/**
+	 * @param timeline - the timeline to give the copy
+	 * @return - a copy of this route's header fields, with the given timeline
+	 */
+	private RouteData withTimeline(RouteTimeline timeline)
+	{
+		RouteData snapshot = new RouteData();
+		snapshot.robot = routeData.robot;
+		snapshot.title = routeData.title;
+		snapshot.description = routeData.description;
+		snapshot.version = routeData.version;
+		snapshot.role = routeData.role;
+		snapshot.lastModified = routeData.lastModified;
+		snapshot.schema = routeData.schema;
+		snapshot.timeline = timeline;
+		return snapshot;
+	}
+	
+	/**
+	 * Writes route data to this route's file, in this route's format
+	 * Does not touch this route's own data, so it's safe to call from another thread with a snapshot
+	 * @param data - what to write. Usually routeData, or a snapshot of it
+	 * @param generation - the route's generation when data was copied. The route is clean once this is written, unless it changed since
+	 * @return - how much was written and how long it took
+	 * @throws IOException - if the file can't be written. The file is left as it was, and the failure is counted
+	 */
+	SaveResult write(RouteData data, long generation) throws IOException
+	{
+		long start = System.nanoTime();
+		long bytes;
+		try
 		{
-			e.printStackTrace();
+			if (format != RouteFormat.JSON)
+			{
+				bytes = BinaryRouteFile.write(data, file, format == RouteFormat.ENCODED);
+			}
+			else
+			{
+				//The columns are packed back into one row per measurement as they're written, so the file layout is the same as it always was
+				bytes = DurableFile.replace(file, (channel) ->
+				{
+					Writer writer = new BufferedWriter(Channels.newWriter(channel, StandardCharsets.UTF_8));
+					//Flushes but doesn't close, since DurableFile still has to force the channel
+					LegacyRouteJson.write(data, writer);
+				});
+			}
 		}
-		bufferedWriter = new BufferedWriter(fileWriter);
-		try 
+		catch (IOException e)
 		{
-			//ArrayLists are turned into regular arrays when jsonified. Just a a note
-			//However, when fromJson cast into a RouteData object, they will be magically converted to ArrayLists. Pretty amazing.
-			bufferedWriter.write(gson.toJson(routeData));
-			bufferedWriter.close();
-			fileWriter.close();
-			System.out.println("PhantomRoute: saved " + getName());
-		} 
-		catch (IOException e) 
+			saveFailures.incrementAndGet();
+			throw e;
+		}
+		long nanos = System.nanoTime() - start;
+		//A save of an older copy can finish after a newer one, so never move back
+		savedGeneration.accumulateAndGet(generation, Math::max);
+		
+		//If this covers everything a finished journal held, the journal is no longer needed
+		int covered = journalCoveredLength;
+		if (covered >= 0 && data.timeline.length() >= covered)
 		{
-			e.printStackTrace();
+			RouteJournal.delete(file);
+			journalCoveredLength = -1;
 		}
+		return new SaveResult(true, bytes, nanos, generation);
 	}
 	
 	/**
@@ -341,23 +963,82 @@ public class PhantomRoute
 	 */
 	public void clear()
 	{
-		//Clear all arrayLists
-		routeData.analog.clear();
-		routeData.digital.clear();
-		routeData.spacing.clear();
+		//Clear all timelines
+		pin();
+		routeData.timeline.clear();
+		markChanged();
+		
+		if (journal != null)
+		{
+			//Start the journal over, since everything in it was just cleared
+			stopStreaming();
+			try
+			{
+				startStreaming();
+			}
+			catch (IOException e)
+			{
+				e.printStackTrace();
+			}
+		}
+		else if (journalCoveredLength >= 0)
+		{
+			//Whatever the old journal held was cleared, so any save makes it redundant
+			journalCoveredLength = 0;
+		}
+		
+		//Counts as a modification
+		routeData.lastModified = new Date().getTime();
+	}
+	
+	/**
+	 * Drops measurements that don't change how the route plays back, and optionally cuts idle time off the start and end. See RouteCompactor
+	 * You must save after this operation
+	 * @param tolerances - largest difference allowed on each analog column of the schema. 0 keeps a column exact. POVs are always exact
+	 * @param mode - DEAD_BAND for routes played back with Interpolation.STEP, RDP for LINEAR or CUBIC
+	 * @param trimIdle - true to cut idle measurements from the start and end, e.g. the wait before the driver started moving
+	 * @return - how many measurements were dropped, and the largest error that caused
+	 */
+	public RouteCompactor.Result compact(double[] tolerances, RouteCompactor.Mode mode, boolean trimIdle)
+	{
+		pin();
+		RouteCompactor.Result result = RouteCompactor.compact(routeData.timeline, routeData.schema, tolerances, mode, trimIdle);
+		routeData.timeline = result.timeline;
+		markChanged();
+		
+		if (journal != null)
+		{
+			//Start the journal over, since the measurements in it were just rewritten
+			stopStreaming();
+			try
+			{
+				startStreaming();
+			}
+			catch (IOException e)
+			{
+				e.printStackTrace();
+			}
+		}
+		else if (journalCoveredLength >= 0)
+		{
+			//Whatever the old journal held is part of the compacted timeline, so any save makes it redundant
+			journalCoveredLength = 0;
+		}
 		
 		//Counts as a modification
 		routeData.lastModified = new Date().getTime();
+		return result;
 	}
 	
 	/**
-	 * Deletes this file representation on the system
+	 * Deletes this file representation on the system, along with its previous save
 	 * Do not use this PhantomRoute after calling this
 	 * TODO: have this object delete itself
 	 */
 	public void delete()
 	{
 		this.file.delete();
+		DurableFile.backupFor(file).delete();
 	}
 	
 	/**
@@ -365,49 +1046,83 @@ public class PhantomRoute
 	 */
 	public boolean getIsEmpty()
 	{
-		//Set to false if any ArrayList in this route is not empty
-		boolean isEmpty = true;
-		
-		//Go through each array and check that all are empty
-		for (Double[] d : routeData.analog)
+		//All the columns are the same length, so checking one is enough
+		return length() == 0;
+	}
+	
+	/**
+	 * @return - a nice little table thing that gives an overview to this PhantomRoute
+	 */
+	public String getOverview()
+	{
+		StringBuilder builder = new StringBuilder();
+		try
 		{
-			if (d.length != 0)
-			{
-				isEmpty = false;
-			}
+			renderOverview(builder);
 		}
-		
-		for (Boolean[] b : routeData.digital)
+		catch (IOException e)
 		{
-			if (b.length != 0)
-			{
-				isEmpty = false;
-			}
+			//A StringBuilder never throws
+			throw new UncheckedIOException(e);
 		}
-		
-		if (routeData.spacing.size() != 0)
+		return builder.toString();
+	}
+	
+	/**
+	 * Writes getOverview() to a writer, a PrintStream, a StringBuilder etc. without building it as a String first
+	 * Only uses the catalog's description of the route, so the timeline isn't read
+	 * @param out - where to write the overview. Nothing is written after its last line
+	 * @throws IOException - if out throws
+	 */
+	public void renderOverview(Appendable out) throws IOException
+	{
+		out.append("| \"").append(getName()).append('"');
+		//If the version is 1, then add a little "(v1)" reminder next to the name
+		if (getVersion() == 1)
 		{
-			isEmpty = false;
+			out.append(" (v1)");
 		}
-		
-		return isEmpty;
+		out.append('\n');
+		out.append("|    Description: \"").append(getDescription()).append("\"\n");
+		out.append("|    Saved at ").append(getPath()).append('\n');
+		out.append("|    Last Modified ").append(getLastModified()).append(" (24-h Clock) \n");
+		out.append("|    Duration: ").append(String.valueOf(getDuration())).append("ms");
 	}
 	
 	/**
-	 * @return - a nice little table thing that gives an overview to this PhantomRoute
+	 * Writes the overview followed by the route's measurements, one per line pair
+	 * Takes time in proportion to the rows written and no memory beyond the current value, so it's safe to point at a long route
+	 * @param out - where to write the dump
+	 * @param rowLimit - most measurements to list, after which only how many were left out is written. 0 for just the overview and a summary line
+	 * @throws IOException - if out throws
 	 */
-	public String getOverview()
+	public void renderDump(Appendable out, int rowLimit) throws IOException
 	{
-		//If the version is 1, then add a little "(v1)" reminder next to the name. Otherwise add "" (blank)
-		String versionStr = (this.getVersion() == 1) ? " (v" + this.getVersion() + ")" : "";
+		renderOverview(out);
+		out.append("\n| ---Contained Data---\n");
 		
-		String tableStr = "";
-		tableStr += "| \"" + this.getName() + "\"" + versionStr + "\n";
-		tableStr += "|    Description: \"" + this.getDescription() + "\"\n";
-		tableStr += "|    Saved at " + this.getPath() + "\n";
-		tableStr += "|    Last Modified " + this.getLastModified() + " (24-h Clock) \n";
-		tableStr += "|    Duration: " + this.getDuration() + "ms";
-		return tableStr;
+		int length = length();
+		int rows = Math.min(length, Math.max(rowLimit, 0));
+		ChannelSchema schema = getSchema();
+		for (int i = 0; i < rows; i++)
+		{
+			out.append("| { ").append(String.valueOf(getSpacing(i))).append("ms passes... }\n");
+			out.append("| Index [").append(String.valueOf(i)).append("] -> Analog:[");
+			for (int a = 0; a < schema.getAnalogChannelCount(); a++)
+			{
+				out.append(String.valueOf(getAnalog(a, i))).append(',');
+			}
+			out.append("] | Digital:[");
+			for (int d = 0; d < schema.getDigitalChannelCount(); d++)
+			{
+				out.append(String.valueOf(getDigital(d, i))).append(',');
+			}
+			out.append("]\n");
+		}
+		if (rows < length)
+		{
+			out.append("| ... ").append(String.valueOf(length - rows)).append(" more of ").append(String.valueOf(length)).append(" measurements\n");
+		}
 	}
 	
 	/**
@@ -429,11 +1144,17 @@ public class PhantomRoute
 	}
 	
 	/**
-	 * @return - the time, in seconds, that this will hypothetically take to playback
+	 * Comes from the catalog until the timeline is read, so describing a route never reads its measurements
+	 * @return - the time, in ms, that this will hypothetically take to playback
 	 */
 	public double getDuration()
 	{
-		return timeBetween(0, (routeData.spacing.size() - 1));
+		//Don't read a whole timeline just to describe it
+		if (!isLoaded())
+		{
+			return catalogDuration;
+		}
+		return timeBetween(0, lastIndex());
 	}
 	
 	/**
@@ -487,6 +1208,55 @@ public class PhantomRoute
 		return PhantomRoute.EXTENSION;
 	}
 	
+	/**
+	 * @return - how this route's file is laid out
+	 */
+	public RouteFormat getFormat()
+	{
+		return format;
+	}
+	
+	/**
+	 * Changes how this route's file will be laid out. Takes effect on the next save
+	 * @param format - the new format
+	 */
+	public void setFormat(RouteFormat format)
+	{
+		if (this.format != format)
+		{
+			this.format = format;
+			markChanged();
+		}
+	}
+	
+	/**
+	 * @return - which joystick inputs this route holds, and in which columns and bits
+	 */
+	public ChannelSchema getSchema()
+	{
+		return routeData.schema;
+	}
+	
+	/**
+	 * Changes which joystick inputs this route records. Only allowed while the route is empty, since the existing columns would mean something else
+	 * @param schema - the new schema
+	 */
+	public void setSchema(ChannelSchema schema)
+	{
+		if (schema.equals(routeData.schema))
+		{
+			return;
+		}
+		if (length() > 0)
+		{
+			throw new IllegalStateException("Route " + getName() + " already has measurements, clear it before changing its schema");
+		}
+		pin();
+		routeData.schema = schema;
+		routeData.timeline = new RouteTimeline(schema.getAnalogChannelCount(), RouteTimeline.DEFAULT_CAPACITY);
+		markChanged();
+	}
+	
 	/**
 	 * @return - the absolute file path and file name + extension on the roboRIO
 	 */
@@ -504,42 +1274,72 @@ public class PhantomRoute
 	}
 	
 	/**
-	 * WARNING: THIS CAN POTENTIALLY TAKE A LONG TIME TO EXECUTE
+	 * Compares the descriptions and measurements directly. Where the routes are saved and when they were last modified don't matter
+	 * Reads both timelines, stopping at the first difference
+	 * Deliberately not equals(Object), since routes are kept in maps by identity
 	 * @param other - PhantomRoute to check against
 	 * @return - true if they contain the same data
 	 */
 	public boolean equals(PhantomRoute other)
 	{
-		//Don't like it? Fine. Send your hatemail to bengr444@gmail.com.
-		return this.toString().equals(other.toString());
-	}
-	
-	public String toString()
-	{
-		String returnValue = this.getOverview() + "\n| ---Contained Data---\n";
+		if (other == this)
+		{
+			return true;
+		}
+		if (other == null || getVersion() != other.getVersion() || !Objects.equals(getRobot(), other.getRobot()) || !Objects.equals(getTitle(), other.getTitle())
+			|| !Objects.equals(getDescription(), other.getDescription()) || !Objects.equals(getRole(), other.getRole()) || !getSchema().equals(other.getSchema()))
+		{
+			return false;
+		}
 		
-		//TODO: this doesnt work
-		for (int i = 0; i < this.length(); i++)
+		int length = length();
+		if (other.length() != length)
+		{
+			return false;
+		}
+		ChannelSchema schema = getSchema();
+		//Measurement by measurement, so routes that stream their file only ever move forward
+		for (int i = 0; i < length; i++)
 		{
-			returnValue = returnValue + "| { " + routeData.spacing.get(i) + "ms passes... " + "}\n";
-			
-			String analogStr = "[";
-			for (Double a : routeData.analog.get(i))
+			if (getTimestampNanos(i) != other.getTimestampNanos(i))
 			{
-				analogStr = analogStr + a + ",";
+				return false;
 			}
-			analogStr = analogStr + "]";
-			
-			String digitalStr = "[";
-			for (Boolean a : routeData.digital.get(i))
+			for (int a = 0; a < schema.getAnalogChannelCount(); a++)
 			{
-				digitalStr = digitalStr + a + ",";
+				//Same as Double.equals(), so NaN matches NaN
+				if (Double.doubleToLongBits(getAnalog(a, i)) != Double.doubleToLongBits(other.getAnalog(a, i)))
+				{
+					return false;
+				}
+			}
+			for (int d = 0; d < schema.getDigitalChannelCount(); d++)
+			{
+				if (getDigital(d, i) != other.getDigital(d, i))
+				{
+					return false;
+				}
 			}
-			digitalStr = digitalStr + "]";
-			
-			returnValue = returnValue + "| Index [" + i + "] -> Analog:" + analogStr + " | Digital:" + digitalStr + "\n";
 		}
-		
-		return returnValue;
+		return true;
+	}
+	
+	/**
+	 * @return - the overview and the first TO_STRING_ROW_LIMIT measurements. See renderDump()
+	 */
+	@Override
+	public String toString()
+	{
+		StringBuilder builder = new StringBuilder();
+		try
+		{
+			renderDump(builder, TO_STRING_ROW_LIMIT);
+		}
+		catch (IOException e)
+		{
+			//A StringBuilder never throws
+			throw new UncheckedIOException(e);
+		}
+		return builder.toString();
 	}
 }
@@ -0,0 +1,208 @@
+package org.team283.auto;
+
+import java.io.Closeable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.LongConsumer;
+
+import org.team283.util.Logger;
+
+/**
+ * Runs a task at a fixed rate on its own high priority thread, independent of the robot loop
+ *
+ * Every tick has a deadline of start + n * period on the monotonic System.nanoTime() clock, so a late tick doesn't push back the
+ * ones after it and the rate can't drift. The thread parks until just before each deadline, then spins for the last SPIN_NS to
+ * wake up on time. If a tick runs so long that later deadlines have already passed, the newest of them runs straight away and the
+ * older ones are skipped and counted as overruns, rather than run back to back
+ *
+ * The task is passed the ns since start() at which it actually runs, so what it records can be timed exactly
+ *
+ * Example Usage:
+ *  RecordingScheduler scheduler = new RecordingScheduler(TimeUnit.MILLISECONDS.toNanos(10), (elapsedNanos) -> sample(elapsedNanos));
+ *  scheduler.start();
+ *  ...
+ *  scheduler.close();  //Waits for a running tick to finish
+ */
+public class RecordingScheduler implements Closeable
+{
+	/** How long before each deadline the thread stops parking and starts spinning. Parking alone wakes up tens of microseconds late on Linux */
+	public final static long SPIN_NS = TimeUnit.MICROSECONDS.toNanos(100);
+	
+	/** Printouts about the scheduler */
+	private final static Logger log = new Logger("RecordingScheduler", Logger.Level.INFO);
+	
+	/** Time between ticks in ns */
+	private final long periodNanos;
+	
+	/** Run every tick with the ns since start() */
+	private final LongConsumer task;
+	
+	/** The scheduler thread. Null until start() */
+	private Thread thread;
+	
+	/** Cleared by close() to end the thread */
+	private volatile boolean running = false;
+	
+	/** Ticks the task was run for */
+	private volatile long ticks = 0;
+	
+	/** Ticks skipped because the one before them ran too late */
+	private volatile long overruns = 0;
+	
+	/** Latest any tick ran after its deadline, in ns */
+	private volatile long maxLatenessNanos = 0;
+	
+	/** Ticks where the task threw */
+	private volatile long failures = 0;
+	
+	/**
+	 * @param periodNanos - time between ticks in ns, e.g. TimeUnit.MILLISECONDS.toNanos(10) for 100Hz
+	 * @param task - run every tick with the ns since start(). Runs on the scheduler thread
+	 */
+	public RecordingScheduler(long periodNanos, LongConsumer task)
+	{
+		if (periodNanos <= 0)
+		{
+			throw new IllegalArgumentException("Period must be positive, got " + periodNanos + "ns");
+		}
+		this.periodNanos = periodNanos;
+		this.task = task;
+	}
+	
+	/**
+	 * Starts ticking. The first tick runs straight away
+	 */
+	public synchronized void start()
+	{
+		if (thread != null)
+		{
+			throw new IllegalStateException("RecordingScheduler can only be started once");
+		}
+		running = true;
+		thread = new Thread(this::run, "PhantomRoute recorder");
+		//Sampling on time matters more than anything else the robot program does in the background
+		thread.setPriority(Thread.MAX_PRIORITY);
+		thread.setDaemon(true);
+		thread.start();
+	}
+	
+	/**
+	 * Stops ticking and waits for a tick that is running to finish. Everything the task did is visible to the caller afterwards
+	 */
+	@Override
+	public synchronized void close()
+	{
+		running = false;
+		if (thread == null)
+		{
+			return;
+		}
+		LockSupport.unpark(thread);
+		boolean interrupted = false;
+		while (thread.isAlive())
+		{
+			try
+			{
+				thread.join();
+			}
+			catch (InterruptedException e)
+			{
+				interrupted = true;
+			}
+		}
+		if (interrupted)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	/**
+	 * @return - time between ticks in ns
+	 */
+	public long getPeriodNanos()
+	{
+		return periodNanos;
+	}
+	
+	/**
+	 * @return - ticks the task was run for
+	 */
+	public long getTicks()
+	{
+		return ticks;
+	}
+	
+	/**
+	 * @return - ticks skipped because the one before them ran too late
+	 */
+	public long getOverruns()
+	{
+		return overruns;
+	}
+	
+	/**
+	 * @return - ticks where the task threw. Only the first one is printed
+	 */
+	public long getFailures()
+	{
+		return failures;
+	}
+	
+	/**
+	 * @return - latest any tick ran after its deadline, in ns
+	 */
+	public long getMaxLatenessNanos()
+	{
+		return maxLatenessNanos;
+	}
+	
+	/**
+	 * Body of the scheduler thread
+	 */
+	private void run()
+	{
+		long start = System.nanoTime();
+		long tick = 0;
+		while (running)
+		{
+			long deadline = start + tick * periodNanos;
+			long remaining;
+			while (running && (remaining = deadline - System.nanoTime()) > 0)
+			{
+				if (remaining > SPIN_NS)
+				{
+					LockSupport.parkNanos(this, remaining - SPIN_NS);
+				}
+				else
+				{
+					Thread.onSpinWait();
+				}
+			}
+			if (!running)
+			{
+				break;
+			}
+			
+			long now = System.nanoTime();
+			maxLatenessNanos = Math.max(maxLatenessNanos, now - deadline);
+			try
+			{
+				task.accept(now - start);
+			}
+			catch (RuntimeException e)
+			{
+				//One bad sample shouldn't end the recording. Printing every failure at this rate would slow down everything else
+				if (failures++ == 0)
+				{
+					log.error("tick " + tick + " failed, later failures are only counted. " + e);
+				}
+			}
+			ticks++;
+			
+			//Of the deadlines that passed while the task was running, only the newest still runs. Running them all back to back would record the same values
+			long newestPassed = (System.nanoTime() - start) / periodNanos;
+			overruns += Math.max(newestPassed - (tick + 1), 0);
+			tick = Math.max(newestPassed, tick + 1);
+		}
+	}
+}
@@ -0,0 +1,191 @@
+package org.team283.auto;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps recently used route timelines in memory, up to a budget in bytes
+ *
+ * Cataloged routes don't hold on to their own timeline (see PhantomRoute(RouteCatalog.Entry, RouteBodyCache)). The first time a timeline
+ * is needed it's read from the file and put here. When the cached timelines add up to more than the budget, the least recently used
+ * ones are dropped and get read again if they're needed later
+ *
+ * Timelines with unsaved changes, and pinned ones like the active route's, are kept by their route instead and never counted here
+ *
+ * Example Usage:
+ *  RouteBodyCache cache = new RouteBodyCache(4 * 1024 * 1024);
+ *  PhantomRoute pr = new PhantomRoute(entry, cache);
+ *  pr.getAnalog(0, 10);  //Miss, reads the file
+ *  pr.getAnalog(0, 11);  //Hit
+ *  cache.getStats();     //"1 hit(s), 1 miss(es), 0 eviction(s), ..."
+ */
+public class RouteBodyCache
+{
+	/** Budget used when none is given. About 80 routes of 15 seconds each */
+	public final static long DEFAULT_BUDGET = 4 * 1024 * 1024;
+	
+	/** Cached timelines, least recently used first */
+	private final LinkedHashMap<PhantomRoute, RouteTimeline> bodies = new LinkedHashMap<PhantomRoute, RouteTimeline>(16, 0.75f, true);
+	
+	/** Most bytes of timelines to keep */
+	private long budget;
+	
+	/** Bytes of timelines currently kept */
+	private long bytesUsed = 0;
+	
+	/** Timelines that were already cached when asked for */
+	private long hits = 0;
+	
+	/** Timelines that had to be read from their file */
+	private long misses = 0;
+	
+	/** Timelines dropped to stay under budget */
+	private long evictions = 0;
+	
+	/**
+	 * @param budget - most bytes of timelines to keep
+	 */
+	public RouteBodyCache(long budget)
+	{
+		this.budget = budget;
+	}
+	
+	public RouteBodyCache()
+	{
+		this(DEFAULT_BUDGET);
+	}
+	
+	/**
+	 * @param route - route whose timeline is needed
+	 * @return - the route's timeline, read from its file if it isn't cached
+	 */
+	public synchronized RouteTimeline get(PhantomRoute route)
+	{
+		RouteTimeline timeline = bodies.get(route);
+		if (timeline != null)
+		{
+			hits++;
+			return timeline;
+		}
+		
+		misses++;
+		timeline = route.readTimeline();
+		
+		//The route kept it for itself, e.g. because a journal added unsaved measurements
+		if (route.routeData.timeline != timeline)
+		{
+			put(route, timeline);
+		}
+		return timeline;
+	}
+	
+	/**
+	 * Adds a timeline, dropping older ones if that puts the cache over budget. The new timeline itself is never dropped here
+	 * @param route - route the timeline belongs to
+	 * @param timeline - the route's timeline
+	 */
+	public synchronized void put(PhantomRoute route, RouteTimeline timeline)
+	{
+		RouteTimeline previous = bodies.put(route, timeline);
+		if (previous != null)
+		{
+			bytesUsed -= previous.sizeInBytes();
+		}
+		bytesUsed += timeline.sizeInBytes();
+		evict(route);
+	}
+	
+	/**
+	 * @param route - route to check
+	 * @return - true if the route's timeline is cached
+	 */
+	public synchronized boolean contains(PhantomRoute route)
+	{
+		return bodies.containsKey(route);
+	}
+	
+	/**
+	 * Forgets a route's timeline, e.g. because the route was pinned, changed or deleted
+	 * @param route - route whose timeline should be forgotten
+	 */
+	public synchronized void remove(PhantomRoute route)
+	{
+		RouteTimeline removed = bodies.remove(route);
+		if (removed != null)
+		{
+			bytesUsed -= removed.sizeInBytes();
+		}
+	}
+	
+	/**
+	 * Forgets every cached timeline. Counters are kept
+	 */
+	public synchronized void clear()
+	{
+		bodies.clear();
+		bytesUsed = 0;
+	}
+	
+	/**
+	 * @param budget - most bytes of timelines to keep. Older timelines are dropped straight away if they no longer fit
+	 */
+	public synchronized void setBudget(long budget)
+	{
+		this.budget = budget;
+		evict(null);
+	}
+	
+	/**
+	 * Drops least recently used timelines until the cache is under budget
+	 * @param keep - a route whose timeline must stay, or null
+	 */
+	private void evict(PhantomRoute keep)
+	{
+		Iterator<Map.Entry<PhantomRoute, RouteTimeline>> iterator = bodies.entrySet().iterator();
+		while (bytesUsed > budget && iterator.hasNext())
+		{
+			Map.Entry<PhantomRoute, RouteTimeline> eldest = iterator.next();
+			if (eldest.getKey() == keep)
+			{
+				continue;
+			}
+			bytesUsed -= eldest.getValue().sizeInBytes();
+			iterator.remove();
+			evictions++;
+		}
+	}
+	
+	public synchronized long getBudget()
+	{
+		return budget;
+	}
+	
+	public synchronized long getBytesUsed()
+	{
+		return bytesUsed;
+	}
+	
+	public synchronized long getHits()
+	{
+		return hits;
+	}
+	
+	public synchronized long getMisses()
+	{
+		return misses;
+	}
+	
+	public synchronized long getEvictions()
+	{
+		return evictions;
+	}
+	
+	/**
+	 * @return - a one-line summary of the counters, for printouts
+	 */
+	public synchronized String getStats()
+	{
+		return hits + " hit(s), " + misses + " miss(es), " + evictions + " eviction(s), " + bodies.size() + " cached using " + bytesUsed + " of " + budget + " bytes";
+	}
+}
@@ -0,0 +1,465 @@
+package org.team283.auto;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+
+import org.team283.util.Logger;
+
+/**
+ * A saved index of every .route file under the search folder, so the robot doesn't have to crawl and parse every route when it boots
+ *
+ * The index remembers each folder's modification time, the folders inside it and the routes in it, plus each route's size,
+ * modification time and description. refresh() only lists a folder again if its modification time changed, and only reads
+ * a route's header again if its size or modification time changed. Timelines are never read here; see PhantomRoute(Entry)
+ *
+ * Folders are visited in parallel on a ForkJoinPool, and every route that needs reading is read as its own task, so a
+ * cold start with many routes is spread across every core instead of parsing one file after another
+ *
+ * The index is plain json, so deleting it just means the next refresh starts from scratch
+ *
+ * Example Usage:
+ *  RouteCatalog catalog = new RouteCatalog(new File("/home/lvuser/frc/routes/route_catalog.json"));
+ *  catalog.refresh(new File("/home"));  //Loads the saved index, checks it against the file system, and saves it if anything changed
+ *  for (RouteCatalog.Entry entry : catalog.getEntries()) ...
+ */
+public class RouteCatalog
+{
+	/** Default name of the index file */
+	public final static String FILE_NAME = "route_catalog.json";
+	
+	/** Printouts about the index */
+	private final static Logger log = new Logger("RouteCatalog", Logger.Level.INFO);
+	
+	/**
+	 * What the catalog knows about one route file. Enough to list and describe a route without reading its timeline
+	 */
+	public static class Entry
+	{
+		/** Route name, as PhantomRoute.getName() would build it */
+		public String name;
+		
+		/** Absolute path to the route file */
+		public String path;
+		
+		/** File size in bytes, when the entry was made */
+		public long size;
+		
+		/** File modification time, when the entry was made */
+		public long modified;
+		
+		/** Layout of the file */
+		public RouteFormat format;
+		
+		public String robot;
+		
+		public String title;
+		
+		public String description;
+		
+		public int version;
+		
+		public String role;
+		
+		public long lastModified;
+		
+		/** Number of measurements */
+		public int length;
+		
+		/** Time in ms from the first measurement to the last, the same as PhantomRoute.getDuration() */
+		public long duration;
+		
+		/** Which joystick inputs the route holds. null in catalogs saved before routes had schemas, which means the default */
+		public ChannelSchema schema;
+		
+		/**
+		 * Reads the description of a route file. Only the header is read, apart from files written before the duration was kept in it
+		 * If the file can't be read, the route is described from the previous save DurableFile kept next to it, which is what PhantomRoute plays in that case
+		 * @param file - a .route file
+		 * @return - a new entry for that file
+		 * @throws IOException - if neither the file nor its previous save can be read
+		 */
+		public static Entry read(File file) throws IOException
+		{
+			try
+			{
+				return read(file, file);
+			}
+			catch (IOException | RuntimeException e)
+			{
+				File backup = DurableFile.backupFor(file);
+				if (!backup.isFile())
+				{
+					throw e;
+				}
+				log.warn("could not read " + file.getPath() + ", describing it from its previous save. " + e.getMessage());
+				return read(file, backup);
+			}
+		}
+		
+		/**
+		 * @param file - a .route file. The entry is for this file, so it's only read again once this file changes
+		 * @param source - the file the description is read from. Either file, or its previous save
+		 * @return - a new entry for file
+		 * @throws IOException - if source can't be read
+		 */
+		private static Entry read(File file, File source) throws IOException
+		{
+			Entry entry = new Entry();
+			entry.path = file.getAbsolutePath();
+			entry.size = file.length();
+			entry.modified = file.lastModified();
+			entry.format = RouteFormat.detect(source);
+			
+			RouteData routeData;
+			if (entry.format != RouteFormat.JSON)
+			{
+				try (FileChannel channel = FileChannel.open(source.toPath(), StandardOpenOption.READ))
+				{
+					BinaryRouteFile header = BinaryRouteFile.readHeader(channel);
+					routeData = header.routeData;
+					entry.length = header.length;
+					entry.duration = header.getDuration();
+				}
+			}
+			else
+			{
+				//JsonReader buffers on its own
+				try (Reader reader = new InputStreamReader(new FileInputStream(source), StandardCharsets.UTF_8))
+				{
+					LegacyRouteJson header = LegacyRouteJson.readHeader(reader);
+					routeData = header.routeData;
+					entry.length = header.length;
+					entry.duration = header.duration;
+				}
+			}
+			entry.robot = routeData.robot;
+			entry.title = routeData.title;
+			entry.description = routeData.description;
+			entry.version = routeData.version;
+			entry.role = routeData.role;
+			entry.lastModified = routeData.lastModified;
+			entry.schema = routeData.schema;
+			entry.name = new PhantomRoute(entry).getName();
+			return entry;
+		}
+		
+		/**
+		 * @return - a RouteData with this entry's description and no timeline
+		 */
+		public RouteData toRouteData()
+		{
+			RouteData routeData = new RouteData();
+			routeData.robot = robot;
+			routeData.title = title;
+			routeData.description = description;
+			routeData.version = version;
+			routeData.role = role;
+			routeData.lastModified = lastModified;
+			routeData.schema = (schema == null) ? ChannelSchema.DEFAULT : schema;
+			return routeData;
+		}
+	}
+	
+	/**
+	 * What the catalog knows about one folder
+	 */
+	private static class Folder
+	{
+		/** Folder modification time when it was last listed. Changes when anything directly inside is added, removed or renamed */
+		public long modified;
+		
+		/** Absolute paths of the folders directly inside */
+		public ArrayList<String> folders = new ArrayList<String>();
+		
+		/** Absolute paths of the route files directly inside */
+		public ArrayList<String> routes = new ArrayList<String>();
+	}
+	
+	/**
+	 * The part of the catalog that gets saved
+	 */
+	private static class Index
+	{
+		/** Every folder under the search folder, by absolute path */
+		public HashMap<String, Folder> folders = new HashMap<String, Folder>();
+		
+		/** Every route file, by absolute path */
+		public HashMap<String, Entry> entries = new HashMap<String, Entry>();
+	}
+	
+	/** Where the index is saved */
+	private final File indexFile;
+	
+	/** Used to read and write the index */
+	private final Gson gson = new GsonBuilder().create();
+	
+	/** The current index */
+	private Index index = new Index();
+	
+	/** True when the index changed since it was loaded. Set from the refresh tasks */
+	private volatile boolean changed = false;
+	
+	/** Runs the refresh tasks */
+	private final ForkJoinPool pool;
+	
+	/**
+	 * @param indexFile - where the index is saved. Doesn't have to exist yet
+	 */
+	public RouteCatalog(File indexFile)
+	{
+		this(indexFile, ForkJoinPool.commonPool());
+	}
+	
+	/**
+	 * @param indexFile - where the index is saved. Doesn't have to exist yet
+	 * @param pool - runs the folder visits and route reads of refresh()
+	 */
+	public RouteCatalog(File indexFile, ForkJoinPool pool)
+	{
+		this.indexFile = indexFile;
+		this.pool = pool;
+	}
+	
+	/**
+	 * Reads the saved index. Starts from an empty index if there is none, or it can't be read
+	 */
+	public void load()
+	{
+		index = new Index();
+		changed = false;
+		if (!indexFile.exists())
+		{
+			return;
+		}
+		try (Reader reader = new InputStreamReader(new FileInputStream(indexFile), StandardCharsets.UTF_8))
+		{
+			Index loaded = gson.fromJson(reader, Index.class);
+			if (loaded != null && loaded.folders != null && loaded.entries != null)
+			{
+				index = loaded;
+			}
+		}
+		catch (IOException | JsonParseException e)
+		{
+			log.warn("could not read " + indexFile + ", rebuilding it. " + e.getMessage());
+		}
+	}
+	
+	/**
+	 * Writes the index, if anything changed since it was loaded
+	 * Replaced through DurableFile like a route file, so a crash or brownout partway through leaves the old index intact
+	 */
+	public void save()
+	{
+		if (!changed)
+		{
+			return;
+		}
+		try
+		{
+			indexFile.getAbsoluteFile().getParentFile().mkdirs();
+			DurableFile.replace(indexFile, (channel) ->
+			{
+				Writer writer = new BufferedWriter(Channels.newWriter(channel, StandardCharsets.UTF_8));
+				gson.toJson(index, writer);
+				//Flushes but doesn't close, since DurableFile still has to force the channel
+				writer.flush();
+			});
+			changed = false;
+		}
+		catch (IOException e)
+		{
+			log.warn("could not save " + indexFile + ". " + e.getMessage());
+		}
+	}
+	
+	/**
+	 * Loads the saved index, brings it up to date with everything under the search folder, and saves it if anything changed
+	 * @param searchFolder - folder to search for .route files, including all folders inside it
+	 */
+	public void refresh(File searchFolder)
+	{
+		load();
+		ConcurrentHashMap<String, Folder> folders = new ConcurrentHashMap<String, Folder>();
+		ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+		pool.invoke(new VisitFolder(searchFolder.getAbsoluteFile(), folders, entries));
+		
+		Index updated = new Index();
+		updated.folders.putAll(folders);
+		updated.entries.putAll(entries);
+		
+		//Anything left behind was deleted or moved
+		if (updated.entries.size() != index.entries.size() || updated.folders.size() != index.folders.size())
+		{
+			changed = true;
+		}
+		index = updated;
+		save();
+	}
+	
+	/**
+	 * Brings one folder up to date, then forks a task for every folder inside it and every route in it that needs reading
+	 * Only reads from the old index, so any number of these can run at once
+	 */
+	private class VisitFolder extends RecursiveAction
+	{
+		/** RecursiveAction is Serializable, but tasks are never serialized */
+		private final static long serialVersionUID = 1L;
+		
+		/** Folder to check */
+		private final File folder;
+		
+		/** Where the up-to-date folders are collected */
+		private final Map<String, Folder> folders;
+		
+		/** Where the up-to-date entries are collected */
+		private final Map<String, Entry> entries;
+		
+		private VisitFolder(File folder, Map<String, Folder> folders, Map<String, Entry> entries)
+		{
+			this.folder = folder;
+			this.folders = folders;
+			this.entries = entries;
+		}
+		
+		@Override
+		protected void compute()
+		{
+			String folderPath = folder.getPath();
+			Folder known = index.folders.get(folderPath);
+			long modified = folder.lastModified();
+			
+			Folder current;
+			if (known != null && known.modified == modified && modified != 0)
+			{
+				//Nothing was added or removed, so the old listing still holds
+				current = known;
+			}
+			else
+			{
+				File[] files = folder.listFiles();
+				if (files == null)
+				{
+					return;
+				}
+				current = new Folder();
+				current.modified = modified;
+				for (File file : files)
+				{
+					if (file.isDirectory())
+					{
+						current.folders.add(file.getPath());
+					}
+					else if (isRouteFile(file))
+					{
+						current.routes.add(file.getPath());
+					}
+				}
+				changed = true;
+			}
+			folders.put(folderPath, current);
+			
+			ArrayList<RecursiveAction> tasks = new ArrayList<RecursiveAction>();
+			for (String routePath : current.routes)
+			{
+				File routeFile = new File(routePath);
+				Entry knownEntry = index.entries.get(routePath);
+				if (knownEntry != null && knownEntry.size == routeFile.length() && knownEntry.modified == routeFile.lastModified())
+				{
+					entries.put(routePath, knownEntry);
+				}
+				else if (!routeFile.isFile())
+				{
+					//Deleted without the folder's time changing, e.g. within the same second
+					changed = true;
+				}
+				else
+				{
+					tasks.add(new ReadRoute(routeFile, entries));
+				}
+			}
+			for (String subfolder : current.folders)
+			{
+				tasks.add(new VisitFolder(new File(subfolder), folders, entries));
+			}
+			invokeAll(tasks);
+		}
+	}
+	
+	/**
+	 * Reads the description of one new or changed route file
+	 */
+	private class ReadRoute extends RecursiveAction
+	{
+		/** RecursiveAction is Serializable, but tasks are never serialized */
+		private final static long serialVersionUID = 1L;
+		
+		/** Route file to read */
+		private final File routeFile;
+		
+		/** Where the new entry goes */
+		private final Map<String, Entry> entries;
+		
+		private ReadRoute(File routeFile, Map<String, Entry> entries)
+		{
+			this.routeFile = routeFile;
+			this.entries = entries;
+		}
+		
+		@Override
+		protected void compute()
+		{
+			try
+			{
+				entries.put(routeFile.getPath(), Entry.read(routeFile));
+				changed = true;
+			}
+			catch (IOException | RuntimeException e)
+			{
+				log.warn("could not read " + routeFile.getPath() + ", skipping it. " + e.getMessage());
+			}
+		}
+	}
+	
+	/**
+	 * @param file - any file
+	 * @return - true if it has the .route extension
+	 */
+	public static boolean isRouteFile(File file)
+	{
+		//Position of the "." in the file name
+		int dotIndex = file.getName().lastIndexOf(".") + 1;
+		
+		//Grab the "route" part of "file.route" (or any other other file extension, like "txt")
+		String extension = file.getName().substring(dotIndex);
+		return extension.equalsIgnoreCase(PhantomRoute.EXTENSION);
+	}
+	
+	/**
+	 * @return - every route file found by the last refresh
+	 */
+	public Collection<Entry> getEntries()
+	{
+		return index.entries.values();
+	}
+}
@@ -0,0 +1,424 @@
+package org.team283.auto;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Packs a timeline into a compact stream of bytes, and unpacks it again one measurement at a time
+ *
+ * Joystick timelines are very repetitive: buttons stay the same for hundreds of measurements, and axes move a little each cycle. So:
+ *  - Axes are quantized to 16-bit fixed point (steps of 1/32767), then stored as the zigzag varint of the change since the previous measurement
+ *  - Button bitmasks are run-length encoded. A bitmask and how many measurements it lasts are only written when it changes
+ *  - Spacing is a varint, counted in a time unit the caller picks and keeps alongside the stream (BinaryRouteFile keeps it in the header).
+ *    Each timestamp is rounded to the unit and spacing is the difference of the rounded timestamps, so rounding never adds up over a route
+ * A held stick and unchanged buttons take about 1 byte per axis per measurement, and a lot less once the stick is back at rest
+ *
+ * Quantizing is lossy: axes come back within 1/65534 of what was recorded, and values outside [-1, 1] are clamped. Timestamps come back
+ * within half a unit
+ * POV columns (see ChannelSchema) are whole degrees already, so they are rounded instead of quantized and come back exactly
+ *
+ * The stream is row by row, so a Decoder can walk through it in step with playback without unpacking the whole route first
+ *
+ * Layout of one measurement, all varints unsigned LEB128:
+ *  varint spacing, then per analog channel: zigzag varint of (quantized value - previous quantized value), where a POV's
+ *  quantized value is its angle,
+ *  then if the previous button run has ended: varint bitmask, varint run length
+ */
+public class RouteCodec
+{
+	/** Quantized value of an axis at 1.0 */
+	public final static int AXIS_SCALE = 32767;
+	
+	/** Most bytes a varint of an int can take */
+	private final static int MAX_VARINT_SIZE = 5;
+	
+	/**
+	 * @param value - axis value
+	 * @return - the value as 16-bit fixed point, clamped to [-1, 1]
+	 */
+	public static int quantize(double value)
+	{
+		return (int)Math.round(Math.max(-1, Math.min(1, value)) * AXIS_SCALE);
+	}
+	
+	/**
+	 * @param quantized - a value from quantize()
+	 * @return - the axis value it stands for
+	 */
+	public static double dequantize(int quantized)
+	{
+		return (double)quantized / AXIS_SCALE;
+	}
+	
+	/**
+	 * @param value - analog value
+	 * @param type - what the analog column holds
+	 * @return - the value as stored in the stream
+	 */
+	private static int quantize(double value, ChannelSchema.Type type)
+	{
+		return (type == ChannelSchema.Type.AXIS) ? quantize(value) : (int)Math.round(value);
+	}
+	
+	/**
+	 * @param quantized - a value from quantize(double, Type)
+	 * @param type - what the analog column holds
+	 * @return - the analog value it stands for
+	 */
+	private static double dequantize(int quantized, ChannelSchema.Type type)
+	{
+		return (type == ChannelSchema.Type.AXIS) ? dequantize(quantized) : quantized;
+	}
+	
+	/**
+	 * @param length - number of measurements
+	 * @param schema - what the analog columns hold
+	 * @return - the most bytes encode() can write for that many measurements
+	 * @throws ArithmeticException - if that's more than fits in an int
+	 */
+	public static int maxEncodedSize(int length, ChannelSchema schema)
+	{
+		//A change from -32767 to 32767 takes 3 bytes as a zigzag varint. POVs and anything else are stored unscaled, so a change can take a full varint
+		int analogSize = 0;
+		for (int c = 0; c < schema.getAnalogChannelCount(); c++)
+		{
+			analogSize += (schema.getAnalogType(c) == ChannelSchema.Type.AXIS) ? 3 : MAX_VARINT_SIZE;
+		}
+		//Worst case every measurement starts a new button run
+		return Math.multiplyExact(length, MAX_VARINT_SIZE + analogSize + MAX_VARINT_SIZE * 2);
+	}
+	
+	/**
+	 * Writes every measurement of a timeline
+	 * @param timeline - timeline to encode
+	 * @param schema - what the timeline's analog columns hold
+	 * @param unitNanos - ns in one unit of spacing, e.g. RouteTimeline.NANOS_PER_MS. The Decoder must be given the same
+	 * @param out - where the bytes go. Must have at least maxEncodedSize() remaining
+	 * @throws ArithmeticException - if two measurements are too far apart for the unit
+	 */
+	public static void encode(RouteTimeline timeline, ChannelSchema schema, long unitNanos, ByteBuffer out)
+	{
+		int length = timeline.length();
+		long[] timestamps = timeline.timestampColumn();
+		int[] digital = timeline.digitalColumn();
+		int[] previous = new int[schema.getAnalogChannelCount()];
+		long previousUnits = 0;
+		int runRemaining = 0;
+		for (int i = 0; i < length; i++)
+		{
+			long units = Math.floorDiv(timestamps[i] + unitNanos / 2, unitNanos);
+			putVarint(out, Math.toIntExact(units - previousUnits));
+			previousUnits = units;
+			for (int c = 0; c < previous.length; c++)
+			{
+				int quantized = quantize(timeline.getAnalog(c, i), schema.getAnalogType(c));
+				putVarint(out, zigzag(quantized - previous[c]));
+				previous[c] = quantized;
+			}
+			if (runRemaining == 0)
+			{
+				//Start a new run, as long as the bitmask stays the same
+				int runEnd = i + 1;
+				while (runEnd < length && digital[runEnd] == digital[i])
+				{
+					runEnd++;
+				}
+				putVarint(out, digital[i]);
+				putVarint(out, runEnd - i);
+				runRemaining = runEnd - i;
+			}
+			runRemaining--;
+		}
+	}
+	
+	/**
+	 * Unpacks a whole encoded stream onto the heap
+	 * @param in - positioned at the first measurement. Left just past the last one
+	 * @param length - number of measurements in the stream
+	 * @param schema - what the stream's analog columns hold
+	 * @param unitNanos - ns in one unit of spacing, as given to encode()
+	 * @return - the decoded timeline
+	 * @throws IOException - if the stream is cut off or corrupt
+	 */
+	public static RouteTimeline decode(ByteBuffer in, int length, ChannelSchema schema, long unitNanos) throws IOException
+	{
+		RouteTimeline timeline = new RouteTimeline(schema.getAnalogChannelCount(), length);
+		Decoder decoder = new Decoder(in, length, schema, unitNanos);
+		double[] analogValues = new double[schema.getAnalogChannelCount()];
+		while (decoder.next())
+		{
+			for (int c = 0; c < analogValues.length; c++)
+			{
+				analogValues[c] = decoder.getAnalog(c, decoder.getIndex());
+			}
+			timeline.addNanos(analogValues, decoder.getDigitalMask(decoder.getIndex()), decoder.getSpacingNanos(decoder.getIndex()));
+		}
+		in.position(decoder.buffer.position());
+		return timeline;
+	}
+	
+	/**
+	 * Walks through an encoded stream one measurement at a time, without unpacking the rest of it
+	 *
+	 * The last WINDOW measurements stay readable, so looking a few back (like interpolation does) is free.
+	 * Reading further back starts over from the beginning of the stream. Allocates nothing after it's constructed
+	 */
+	public static class Decoder
+	{
+		/** Measurements kept readable behind the newest one */
+		public final static int WINDOW = 4;
+		
+		/** The stream. A private view, so the caller's position isn't moved */
+		private final ByteBuffer buffer;
+		
+		/** Position of the first measurement */
+		private final int start;
+		
+		/** Number of measurements in the stream */
+		private final int length;
+		
+		/** ns in one unit of spacing */
+		private final long unitNanos;
+		
+		/** Index of the newest decoded measurement, -1 before the first */
+		private int index = -1;
+		
+		/** What each analog column holds */
+		private final ChannelSchema.Type[] types;
+		
+		/** Quantized analog values of the newest measurement */
+		private final int[] quantized;
+		
+		/** Bitmask of the current button run */
+		private int mask = 0;
+		
+		/** Measurements left in the current button run */
+		private int runRemaining = 0;
+		
+		/** Timestamp of the newest measurement, in units */
+		private long timestamp = 0;
+		
+		/** Timestamps of the last WINDOW measurements in ns, by index % WINDOW */
+		private final long[] windowTimestamps = new long[WINDOW];
+		
+		/** Spacing of the last WINDOW measurements in ns, by index % WINDOW */
+		private final long[] windowSpacing = new long[WINDOW];
+		
+		/** Button bitmasks of the last WINDOW measurements, by index % WINDOW */
+		private final int[] windowMasks = new int[WINDOW];
+		
+		/** Analog values of the last WINDOW measurements, by index % WINDOW */
+		private final double[][] windowAnalog;
+		
+		/**
+		 * @param in - positioned at the first measurement
+		 * @param length - number of measurements in the stream
+		 * @param schema - what the stream's analog columns hold
+		 * @param unitNanos - ns in one unit of spacing, as given to encode()
+		 */
+		public Decoder(ByteBuffer in, int length, ChannelSchema schema, long unitNanos)
+		{
+			this.buffer = in.duplicate().order(in.order());
+			this.start = in.position();
+			this.length = length;
+			this.unitNanos = unitNanos;
+			this.types = new ChannelSchema.Type[schema.getAnalogChannelCount()];
+			for (int c = 0; c < types.length; c++)
+			{
+				types[c] = schema.getAnalogType(c);
+			}
+			this.quantized = new int[types.length];
+			this.windowAnalog = new double[WINDOW][types.length];
+		}
+		
+		/**
+		 * Goes back to before the first measurement
+		 */
+		public void reset()
+		{
+			buffer.position(start);
+			index = -1;
+			mask = 0;
+			runRemaining = 0;
+			timestamp = 0;
+			for (int c = 0; c < quantized.length; c++)
+			{
+				quantized[c] = 0;
+			}
+		}
+		
+		/**
+		 * Decodes the next measurement
+		 * @return - false if there are no more
+		 * @throws IOException - if the stream is cut off or corrupt
+		 */
+		public boolean next() throws IOException
+		{
+			if (index + 1 >= length)
+			{
+				return false;
+			}
+			try
+			{
+				int spacing = getVarint(buffer);
+				for (int c = 0; c < quantized.length; c++)
+				{
+					quantized[c] += unzigzag(getVarint(buffer));
+				}
+				if (runRemaining == 0)
+				{
+					mask = getVarint(buffer);
+					runRemaining = getVarint(buffer);
+					if (runRemaining <= 0)
+					{
+						throw new IOException("Encoded route has an empty button run at measurement " + (index + 1));
+					}
+				}
+				runRemaining--;
+				index++;
+				timestamp += spacing;
+				
+				int slot = index % WINDOW;
+				windowTimestamps[slot] = timestamp * unitNanos;
+				windowSpacing[slot] = spacing * unitNanos;
+				windowMasks[slot] = mask;
+				for (int c = 0; c < quantized.length; c++)
+				{
+					windowAnalog[slot][c] = dequantize(quantized[c], types[c]);
+				}
+				return true;
+			}
+			catch (BufferUnderflowException e)
+			{
+				throw new IOException("Encoded route ended early at measurement " + (index + 1));
+			}
+		}
+		
+		/**
+		 * Makes a measurement readable, decoding forward to it, or starting over if it has fallen out of the window
+		 * @param target - measurement index
+		 * @throws IOException - if the stream is cut off or corrupt
+		 */
+		public void seek(int target) throws IOException
+		{
+			if (target < 0 || target >= length)
+			{
+				throw new IndexOutOfBoundsException("Index " + target + " out of bounds for length " + length);
+			}
+			if (target <= index - WINDOW)
+			{
+				reset();
+			}
+			while (index < target)
+			{
+				next();
+			}
+		}
+		
+		/**
+		 * @return - index of the newest decoded measurement, -1 before the first
+		 */
+		public int getIndex()
+		{
+			return index;
+		}
+		
+		/**
+		 * @return - number of measurements in the stream
+		 */
+		public int length()
+		{
+			return length;
+		}
+		
+		/**
+		 * The get functions read a measurement that seek() or next() already made readable
+		 * @param channel - analog channel
+		 * @param at - measurement index, within the window
+		 * @return - axis value, or POV angle
+		 */
+		public double getAnalog(int channel, int at)
+		{
+			return windowAnalog[slot(at)][channel];
+		}
+		
+		public int getDigitalMask(int at)
+		{
+			return windowMasks[slot(at)];
+		}
+		
+		public long getSpacingNanos(int at)
+		{
+			return windowSpacing[slot(at)];
+		}
+		
+		public long getTimestampNanos(int at)
+		{
+			return windowTimestamps[slot(at)];
+		}
+		
+		/**
+		 * @param at - measurement index
+		 * @return - where that measurement sits in the window
+		 */
+		private int slot(int at)
+		{
+			if (at > index || at <= index - WINDOW || at < 0)
+			{
+				throw new IllegalStateException("Measurement " + at + " is not decoded, the decoder is at " + index);
+			}
+			return at % WINDOW;
+		}
+	}
+	
+	/**
+	 * @param value - any int
+	 * @return - the value with small magnitudes mapped to small unsigned numbers: 0, -1, 1, -2 ... become 0, 1, 2, 3 ...
+	 */
+	private static int zigzag(int value)
+	{
+		return (value << 1) ^ (value >> 31);
+	}
+	
+	/**
+	 * @param value - a value from zigzag()
+	 * @return - the original value
+	 */
+	private static int unzigzag(int value)
+	{
+		return (value >>> 1) ^ -(value & 1);
+	}
+	
+	/**
+	 * Writes an int as an unsigned LEB128 varint, 7 bits per byte
+	 */
+	private static void putVarint(ByteBuffer out, int value)
+	{
+		while ((value & ~0x7F) != 0)
+		{
+			out.put((byte)((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.put((byte)value);
+	}
+	
+	/**
+	 * Reads an unsigned LEB128 varint
+	 * @throws IOException - if it runs longer than an int can hold
+	 */
+	private static int getVarint(ByteBuffer in) throws IOException
+	{
+		int value = 0;
+		for (int shift = 0; shift < 32; shift += 7)
+		{
+			byte b = in.get();
+			value |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+			{
+				return value;
+			}
+		}
+		throw new IOException("Encoded route has a malformed varint");
+	}
+}
@@ -0,0 +1,409 @@
+package org.team283.auto;
+
+import java.util.Arrays;
+
+/**
+ * Drops measurements that don't change how a route plays back
+ *
+ * Routes record a measurement every cycle even while the stick is held still. Compacting keeps only the measurements needed to
+ * play the route back within a tolerance on each axis. Every kept measurement keeps its original time, and spacing is rewritten
+ * to match, so playback timing doesn't change
+ *
+ * Two modes, depending on how the route will be played back (see Interpolation):
+ *  DEAD_BAND - for STEP playback. Splits the route into runs where every axis stays close to the run's last value, and keeps the last two measurements of each run
+ *  RDP       - for LINEAR or CUBIC playback. Ramer-Douglas-Peucker: keeps the fewest measurements that a straight line between them stays within tolerance of
+ *
+ * In both modes buttons and POVs play back exactly as recorded, and the route ends at the same time
+ * Idle measurements at the start and end, where every axis is within its tolerance of 0, no POV is pressed and no button is held, can be cut off as well.
+ * That removes the wait before the driver started moving from the start of autonomous
+ *
+ * Example Usage:
+ *  RouteCompactor.Result result = RouteCompactor.compact(timeline, schema, 0.02, RouteCompactor.Mode.DEAD_BAND, true);
+ *  result.getRatio();     //e.g. 6.5 times fewer measurements
+ *  result.getMaxError();  //Largest difference from the original on any axis, e.g. 0.018
+ */
+public class RouteCompactor
+{
+	/**
+	 * How measurements are chosen
+	 */
+	public enum Mode
+	{
+		/** Keeps what STEP playback needs. Errors are measured against STEP playback of the original */
+		DEAD_BAND,
+		
+		/** Keeps what LINEAR playback needs. Errors are measured against a straight line between kept measurements */
+		RDP;
+	}
+	
+	/**
+	 * What a compaction did
+	 */
+	public static class Result
+	{
+		/** The compacted measurements */
+		public final RouteTimeline timeline;
+		
+		/** Measurements before compacting */
+		public final int originalLength;
+		
+		/** Measurements after compacting */
+		public final int compactedLength;
+		
+		/** Largest difference from the original on each axis, measured at every original measurement */
+		public final double[] maxErrors;
+		
+		/** ms of idle cut from the start */
+		public final long trimmedStart;
+		
+		/** ms of idle cut from the end */
+		public final long trimmedEnd;
+		
+		private Result(RouteTimeline timeline, int originalLength, double[] maxErrors, long trimmedStart, long trimmedEnd)
+		{
+			this.timeline = timeline;
+			this.originalLength = originalLength;
+			this.compactedLength = timeline.length();
+			this.maxErrors = maxErrors;
+			this.trimmedStart = trimmedStart;
+			this.trimmedEnd = trimmedEnd;
+		}
+		
+		/**
+		 * @return - how many times fewer measurements there are, e.g. 4 if a quarter were kept
+		 */
+		public double getRatio()
+		{
+			if (compactedLength == 0)
+			{
+				return (originalLength == 0) ? 1 : Double.POSITIVE_INFINITY;
+			}
+			return (double)originalLength / compactedLength;
+		}
+		
+		/**
+		 * @return - largest difference from the original on any axis
+		 */
+		public double getMaxError()
+		{
+			double maxError = 0;
+			for (double error : maxErrors)
+			{
+				maxError = Math.max(maxError, error);
+			}
+			return maxError;
+		}
+		
+		@Override
+		public String toString()
+		{
+			return originalLength + " -> " + compactedLength + " measurements (" + String.format("%.1f", getRatio()) + "x), max error " + getMaxError()
+				+ ", trimmed " + trimmedStart + "ms from the start and " + trimmedEnd + "ms from the end";
+		}
+	}
+	
+	/**
+	 * Compacts with the same tolerance on every axis, keeping POVs exact
+	 * @param source - timeline to compact. Not changed
+	 * @param schema - what the timeline's columns hold
+	 * @param tolerance - largest difference allowed on any axis
+	 * @param mode - how measurements are chosen
+	 * @param trimIdle - true to also cut idle measurements from the start and end
+	 * @return - the compacted timeline and what was done to it
+	 */
+	public static Result compact(RouteTimeline source, ChannelSchema schema, double tolerance, Mode mode, boolean trimIdle)
+	{
+		return compact(source, schema, schema.tolerances(tolerance), mode, trimIdle);
+	}
+	
+	/**
+	 * @param source - timeline to compact. Not changed
+	 * @param schema - what the timeline's columns hold
+	 * @param tolerances - largest difference allowed on each analog column. 0 keeps a column exact. POV tolerances are ignored, POVs are always exact
+	 * @param mode - how measurements are chosen
+	 * @param trimIdle - true to also cut idle measurements from the start and end
+	 * @return - the compacted timeline and what was done to it
+	 */
+	public static Result compact(RouteTimeline source, ChannelSchema schema, double[] tolerances, Mode mode, boolean trimIdle)
+	{
+		if (tolerances.length != schema.getAnalogChannelCount())
+		{
+			throw new IllegalArgumentException("Expected " + schema.getAnalogChannelCount() + " tolerances, got " + tolerances.length);
+		}
+		//A POV jumps between angles, so anything but exact would play back the wrong direction
+		tolerances = tolerances.clone();
+		Arrays.fill(tolerances, schema.getAxisCount(), tolerances.length, 0);
+		int length = source.length();
+		long[] timestamps = source.timestampColumn();
+		int[] digital = source.digitalColumn();
+		
+		//Only measurements in [start, end) are kept
+		int start = 0;
+		int end = length;
+		if (trimIdle)
+		{
+			int firstActive = 0;
+			while (firstActive < length && isIdle(source, schema, firstActive, tolerances))
+			{
+				firstActive++;
+			}
+			int lastActive = length - 1;
+			while (lastActive >= firstActive && isIdle(source, schema, lastActive, tolerances))
+			{
+				lastActive--;
+			}
+			if (firstActive == length)
+			{
+				//Nothing but idle
+				start = length;
+			}
+			else
+			{
+				//Playback shows measurement k from the time of measurement k - 2 until the time of k - 1 (see RouteTimeline.indexFromTimeNanos()),
+				//and measurement 0 only at time 0. So the first active one plays until the time of the idle one in front of it. Keeping that one
+				//idle measurement and starting at the time before it cuts nothing but idle playback, and keeping any more would leave some idle
+				start = Math.max(firstActive - 1, 0);
+				end = lastActive + 1;
+			}
+		}
+		long offset = (start > 0) ? timestamps[start - 1] : 0;
+		long trimmedStart = RouteTimeline.toMillis(Math.min(offset, (length > 0) ? timestamps[length - 1] : 0));
+		long trimmedEnd = (end > start) ? RouteTimeline.toMillis(timestamps[length - 1] - timestamps[end - 1]) : 0;
+		
+		double[] maxErrors = new double[tolerances.length];
+		if (end <= start)
+		{
+			return new Result(new RouteTimeline(tolerances.length, 1), length, maxErrors, trimmedStart, trimmedEnd);
+		}
+		
+		boolean[] keep = new boolean[length];
+		if (mode == Mode.DEAD_BAND)
+		{
+			keepDeadBand(source, tolerances, start, end, keep);
+		}
+		else
+		{
+			keepRdp(source, schema, tolerances, start, end, keep);
+		}
+		
+		int keptCount = 0;
+		for (int i = start; i < end; i++)
+		{
+			if (keep[i])
+			{
+				keptCount++;
+			}
+		}
+		RouteTimeline compacted = new RouteTimeline(tolerances.length, keptCount);
+		double[] analogValues = new double[tolerances.length];
+		long previousTimestamp = offset;
+		for (int i = start; i < end; i++)
+		{
+			if (keep[i])
+			{
+				for (int c = 0; c < analogValues.length; c++)
+				{
+					analogValues[c] = source.getAnalog(c, i);
+				}
+				//Same time as before, minus whatever idle was cut from the start
+				compacted.addNanos(analogValues, digital[i], timestamps[i] - previousTimestamp);
+				previousTimestamp = timestamps[i];
+			}
+		}
+		
+		if (mode == Mode.DEAD_BAND)
+		{
+			measureStepErrors(source, compacted, offset, start, end, maxErrors);
+		}
+		else
+		{
+			measureLinearErrors(source, keep, start, end, maxErrors);
+		}
+		return new Result(compacted, length, maxErrors, trimmedStart, trimmedEnd);
+	}
+	
+	/**
+	 * Marks the measurements STEP playback needs
+	 *
+	 * Playback shows measurement k from the time of measurement k - 2 until the time of k - 1 (see RouteTimeline.indexFromTimeNanos()),
+	 * so a kept measurement is shown in place of the originals after the kept measurement two before it. Once only the last two
+	 * measurements of a run are kept, the run's last one is shown in place of the rest of its run and the one before it in place of the
+	 * run's first, so any time shows a measurement from the same run the original would show, but not always the same measurement.
+	 * So every measurement of a run is kept within half the tolerance of the run's last one, which puts any two of them within tolerance
+	 * Runs are found walking backwards, and a button change always ends a run, so buttons stay exact
+	 */
+	private static void keepDeadBand(RouteTimeline source, double[] tolerances, int start, int end, boolean[] keep)
+	{
+		int[] digital = source.digitalColumn();
+		int runEnd = end - 1;
+		keepRunEnd(runEnd, start, keep);
+		for (int i = end - 2; i >= start; i--)
+		{
+			boolean inRun = digital[i] == digital[runEnd];
+			for (int c = 0; c < tolerances.length && inRun; c++)
+			{
+				inRun = Math.abs(source.getAnalog(c, i) - source.getAnalog(c, runEnd)) <= tolerances[c] / 2;
+			}
+			if (!inRun)
+			{
+				runEnd = i;
+				keepRunEnd(runEnd, start, keep);
+			}
+		}
+	}
+	
+	/**
+	 * Marks the measurements LINEAR playback needs
+	 * Button and POV changes are kept the same way DEAD_BAND keeps them, since they are always played back as STEP. In between those,
+	 * Ramer-Douglas-Peucker keeps splitting each stretch at the measurement furthest from the line until every axis is within tolerance
+	 */
+	private static void keepRdp(RouteTimeline source, ChannelSchema schema, double[] tolerances, int start, int end, boolean[] keep)
+	{
+		int[] digital = source.digitalColumn();
+		long[] timestamps = source.timestampColumn();
+		keep[start] = true;
+		keepRunEnd(end - 1, start, keep);
+		for (int i = start; i < end - 1; i++)
+		{
+			boolean changed = digital[i] != digital[i + 1];
+			for (int c = schema.getAxisCount(); c < tolerances.length && !changed; c++)
+			{
+				changed = source.getAnalog(c, i) != source.getAnalog(c, i + 1);
+			}
+			if (changed)
+			{
+				keepRunEnd(i, start, keep);
+			}
+		}
+		
+		//Stretches still to split, as pairs of kept indices. A stack instead of recursion, so long routes can't overflow
+		int[] stack = new int[2 * (end - start)];
+		int anchor = start;
+		for (int i = start + 1; i < end; i++)
+		{
+			if (!keep[i])
+			{
+				continue;
+			}
+			int top = 0;
+			stack[top++] = anchor;
+			stack[top++] = i;
+			while (top > 0)
+			{
+				int last = stack[--top];
+				int first = stack[--top];
+				double span = timestamps[last] - timestamps[first];
+				
+				//Measurement furthest outside its tolerance, relative to the tolerance
+				int furthest = -1;
+				double furthestScore = 1;
+				for (int j = first + 1; j < last; j++)
+				{
+					double s = (span > 0) ? (timestamps[j] - timestamps[first]) / span : 0;
+					for (int c = 0; c < tolerances.length; c++)
+					{
+						double v0 = source.getAnalog(c, first);
+						double error = Math.abs(source.getAnalog(c, j) - (v0 + (source.getAnalog(c, last) - v0) * s));
+						double score = (tolerances[c] > 0) ? error / tolerances[c] : (error > 0 ? Double.POSITIVE_INFINITY : 0);
+						if (score > furthestScore)
+						{
+							furthest = j;
+							furthestScore = score;
+						}
+					}
+				}
+				if (furthest >= 0)
+				{
+					keep[furthest] = true;
+					stack[top++] = first;
+					stack[top++] = furthest;
+					stack[top++] = furthest;
+					stack[top++] = last;
+				}
+			}
+			anchor = i;
+		}
+	}
+	
+	/**
+	 * Keeps the last measurement of a run and the one before it
+	 */
+	private static void keepRunEnd(int runEnd, int start, boolean[] keep)
+	{
+		keep[runEnd] = true;
+		if (runEnd - 1 >= start)
+		{
+			keep[runEnd - 1] = true;
+		}
+	}
+	
+	/**
+	 * @return - true if every analog column is within its tolerance of its rest value and no button is held
+	 */
+	private static boolean isIdle(RouteTimeline source, ChannelSchema schema, int index, double[] tolerances)
+	{
+		if (source.getDigitalMask(index) != 0)
+		{
+			return false;
+		}
+		for (int c = 0; c < tolerances.length; c++)
+		{
+			if (Math.abs(source.getAnalog(c, index) - schema.restValue(c)) > tolerances[c])
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Plays both timelines back as STEP at every original measurement time and records the largest difference on each axis
+	 */
+	private static void measureStepErrors(RouteTimeline source, RouteTimeline compacted, long offset, int start, int end, double[] maxErrors)
+	{
+		long[] timestamps = source.timestampColumn();
+		int sourceIndex = 0;
+		int compactedIndex = 0;
+		for (int i = start; i < end; i++)
+		{
+			sourceIndex = source.indexFromTimeNanos(timestamps[i], sourceIndex);
+			compactedIndex = compacted.indexFromTimeNanos(timestamps[i] - offset, compactedIndex);
+			if (sourceIndex >= source.length() || compactedIndex >= compacted.length())
+			{
+				break;
+			}
+			for (int c = 0; c < maxErrors.length; c++)
+			{
+				maxErrors[c] = Math.max(maxErrors[c], Math.abs(source.getAnalog(c, sourceIndex) - compacted.getAnalog(c, compactedIndex)));
+			}
+		}
+	}
+	
+	/**
+	 * Draws a straight line between kept measurements and records the largest difference from each dropped one on each axis
+	 */
+	private static void measureLinearErrors(RouteTimeline source, boolean[] keep, int start, int end, double[] maxErrors)
+	{
+		long[] timestamps = source.timestampColumn();
+		int first = start;
+		for (int i = start + 1; i < end; i++)
+		{
+			if (!keep[i])
+			{
+				continue;
+			}
+			double span = timestamps[i] - timestamps[first];
+			for (int j = first + 1; j < i; j++)
+			{
+				double s = (span > 0) ? (timestamps[j] - timestamps[first]) / span : 0;
+				for (int c = 0; c < maxErrors.length; c++)
+				{
+					double v0 = source.getAnalog(c, first);
+					double line = v0 + (source.getAnalog(c, i) - v0) * s;
+					maxErrors[c] = Math.max(maxErrors[c], Math.abs(source.getAnalog(c, j) - line));
+				}
+			}
+			first = i;
+		}
+	}
+}
@@ -1,9 +1,7 @@
 package org.team283.auto;
 
-import java.util.ArrayList;
-
 /**
- * Just the raw data for the timeline
+ * Just the raw data for the route: a few descriptive fields and the timeline itself
  */
 public class RouteData 
 {
@@ -28,25 +26,19 @@ public class RouteData
 	/** A number that can be used to see when this route's timeline data was last modified */
 	public long lastModified;
 	
-	/** An arraylist containing arrays of doubles
-	Length 6 - 6 different channels
-	These are the analog "timelines" */
-	public ArrayList<Double[]> analog;
-	
-	/** Number of analog input timelines */
+	/** Number of analog input timelines in the default schema */
 	public final static int analogChannelCount = 6;
 	
-	/** An arraylist containingarrays of booleans
-	Length 10 - 10 different channels
-	These are the digital "timelines" */
-	public ArrayList<Boolean[]> digital;
-	
-	/** Number of digital input timelines */
+	/** Number of digital input timelines in the default schema */
 	public final static int digitalChannelCount = 10;
 	
-	/**
-	 * Timeline of spacing values: 
-	 * so the spacing value at 1 is the time that passed between measurement of value 0 and value 1 for either the digital or analog array
+	/** Which joystick inputs the timeline holds, and in which columns and bits. See ChannelSchema */
+	public ChannelSchema schema = ChannelSchema.DEFAULT;
+	
+	/** 
+	 * The analog and digital timelines and the time of each measurement, stored as primitive columns
+	 * Spacing works like so: the spacing value at 1 is the time that passed between measurement of value 0 and value 1 for either the digital or analog timeline.
+	 * It's worked out from the timestamps, which are kept in ns
 	 */
-	public ArrayList<Integer> spacing;
+	public RouteTimeline timeline;
 }
@@ -0,0 +1,48 @@
+package org.team283.auto;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The ways a route can be laid out in its .route file
+ * Both share the same extension, so the format is detected from the first few bytes of the file
+ */
+public enum RouteFormat 
+{
+	/** The original Gson layout, one row per measurement. Human readable but slow to read and write */
+	JSON,
+	
+	/** Versioned header followed by packed little-endian columns. See BinaryRouteFile */
+	BINARY,
+	
+	/** The binary header followed by a RouteCodec stream. Several times smaller than BINARY, but axes are quantized and it can't be mapped */
+	ENCODED;
+	
+	/**
+	 * @param file - an existing route file
+	 * @return - BINARY or ENCODED if the file starts with the binary route magic number, depending on its flags, otherwise JSON
+	 * @throws IOException - if the file can't be read
+	 */
+	public static RouteFormat detect(File file) throws IOException
+	{
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ))
+		{
+			//Magic number, format version and flags
+			ByteBuffer magic = ByteBuffer.allocate(BinaryRouteFile.MAGIC.length + 4).order(ByteOrder.LITTLE_ENDIAN);
+			while (magic.hasRemaining() && channel.read(magic) != -1)
+			{
+				//Keep reading until the magic number is filled or the file ends
+			}
+			if (!BinaryRouteFile.hasMagic(magic.array(), magic.position()))
+			{
+				return JSON;
+			}
+			boolean encoded = magic.position() == magic.capacity() && (magic.getShort(BinaryRouteFile.MAGIC.length + 2) & BinaryRouteFile.FLAG_ENCODED) != 0;
+			return encoded ? ENCODED : BINARY;
+		}
+	}
+}
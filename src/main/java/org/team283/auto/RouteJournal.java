@@ -0,0 +1,335 @@
+package org.team283.auto;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only log of the measurements added to a route while it's being recorded
+ *
+ * Every measurement is appended as a fixed-size record with its own checksum. Records are gathered in a buffer and written out
+ * together every few measurements (a group commit), so each add() costs the same no matter how long the recording gets,
+ * and a crash of the robot program loses at most one group instead of the whole recording
+ *
+ * By default a group commit only hands the records to the operating system, which writes them to the flash on its own schedule.
+ * Forcing them there is an fsync, which can stall for a long time on the roboRIO, and appends run on the robot thread.
+ * close() forces everything, so once recording stops the journal also survives a brownout
+ *
+ * The journal sits next to its route file, e.g. napalm_driver_left_side.route.journal. When the route loads and finds a journal,
+ * recover() replays it on top of the route and cuts off any record that was only partly written
+ *
+ * Layout, all little-endian:
+ *  Header: magic "PHRJ", u16 format version, u16 analog channel count, u16 digital channel count, u16 reserved, i32 base length
+ *  Records: i64 spacing in ns, f64 per analog channel, i32 digital bitmask, i32 CRC32 of the bytes before it in the record
+ * Records are sized to the route's schema, so a route with fewer channels journals fewer bytes per measurement
+ *
+ * The base length is how many measurements the route had when the journal was started. Records are replayed after that many measurements,
+ * so it doesn't matter whether the route file was saved before or after some of them were journaled
+ */
+public class RouteJournal implements Closeable
+{
+	/** Added onto the end of the route file's name */
+	public final static String EXTENSION = "journal";
+	
+	/** First bytes of every journal */
+	private final static byte[] MAGIC = {'P', 'H', 'R', 'J'};
+	
+	/** Format version written by this class */
+	private final static int FORMAT_VERSION = 1;
+	
+	/** Size of the header, before the first record */
+	private final static int HEADER_SIZE = 16;
+	
+	/** Measurements gathered before they are written out. 25 is half a second at 20ms */
+	public final static int DEFAULT_GROUP_SIZE = 25;
+	
+	/** Number of analog values in each record */
+	private final int analogChannelCount;
+	
+	/** Size of one record */
+	private final int recordSize;
+	
+	/** The open journal file */
+	private final FileChannel channel;
+	
+	/** Records waiting for the next group commit */
+	private final ByteBuffer pendingRecords;
+	
+	/** One record is built here so its checksum can be taken from a plain array */
+	private final byte[] recordBytes;
+	
+	/** Wraps recordBytes */
+	private final ByteBuffer record;
+	
+	/** Reused for every record */
+	private final CRC32 crc = new CRC32();
+	
+	/** Measurements gathered before they are written out */
+	private final int groupSize;
+	
+	/** When true, every group commit waits until the records are physically on the flash, so they survive a brownout. Otherwise only close() waits */
+	private final boolean force;
+	
+	/**
+	 * Starts a new journal, replacing any journal already there
+	 * @param routeFile - the route file this journal belongs to
+	 * @param baseLength - number of measurements already in the route. Journaled records get replayed after these
+	 * @param schema - the route's schema, which sets how many channels each record holds
+	 * @param groupSize - measurements gathered before they are written out
+	 * @param force - true to wait for every group to be physically written. Only for journals appended to off the robot thread
+	 * @throws IOException - if the journal can't be created
+	 */
+	public RouteJournal(File routeFile, int baseLength, ChannelSchema schema, int groupSize, boolean force) throws IOException
+	{
+		this.analogChannelCount = schema.getAnalogChannelCount();
+		this.recordSize = recordSize(analogChannelCount);
+		this.recordBytes = new byte[recordSize];
+		this.record = ByteBuffer.wrap(recordBytes).order(ByteOrder.LITTLE_ENDIAN);
+		this.groupSize = Math.max(groupSize, 1);
+		this.force = force;
+		this.channel = FileChannel.open(fileFor(routeFile).toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+		this.pendingRecords = ByteBuffer.allocateDirect(recordSize * this.groupSize).order(ByteOrder.LITTLE_ENDIAN);
+		
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		header.put(MAGIC);
+		header.putShort((short)FORMAT_VERSION);
+		header.putShort((short)analogChannelCount);
+		header.putShort((short)schema.getDigitalChannelCount());
+		header.putShort((short)0);
+		header.putInt(baseLength);
+		header.flip();
+		while (header.hasRemaining())
+		{
+			channel.write(header);
+		}
+		if (force)
+		{
+			channel.force(false);
+		}
+	}
+	
+	/**
+	 * Starts a new journal with the default group size. Groups are written without waiting for the flash, see the class description
+	 * @param routeFile - the route file this journal belongs to
+	 * @param baseLength - number of measurements already in the route
+	 * @param schema - the route's schema
+	 * @throws IOException - if the journal can't be created
+	 */
+	public RouteJournal(File routeFile, int baseLength, ChannelSchema schema) throws IOException
+	{
+		this(routeFile, baseLength, schema, DEFAULT_GROUP_SIZE, false);
+	}
+	
+	/**
+	 * @param routeFile - a route file
+	 * @return - where that route's journal goes
+	 */
+	public static File fileFor(File routeFile)
+	{
+		return new File(routeFile.getPath() + "." + EXTENSION);
+	}
+	
+	/**
+	 * Adds one measurement to the journal. Allocates nothing
+	 * Writes the group out once it's full, so this only touches the file every groupSize calls
+	 * @param analogValues - one value per analog channel
+	 * @param digitalMask - button values, bit n is digital channel n
+	 * @param spacingNanos - ns since the previous measurement
+	 * @throws IOException - if a group commit fails
+	 */
+	public void append(double[] analogValues, int digitalMask, long spacingNanos) throws IOException
+	{
+		record.clear();
+		record.putLong(spacingNanos);
+		for (int c = 0; c < analogChannelCount; c++)
+		{
+			record.putDouble(analogValues[c]);
+		}
+		record.putInt(digitalMask);
+		crc.reset();
+		crc.update(recordBytes, 0, record.position());
+		record.putInt((int)crc.getValue());
+		
+		record.flip();
+		pendingRecords.put(record);
+		if (pendingRecords.position() >= recordSize * groupSize)
+		{
+			commit();
+		}
+	}
+	
+	/**
+	 * Writes out every record gathered so far
+	 * @throws IOException - if the write fails
+	 */
+	public void commit() throws IOException
+	{
+		if (pendingRecords.position() == 0)
+		{
+			return;
+		}
+		pendingRecords.flip();
+		while (pendingRecords.hasRemaining())
+		{
+			channel.write(pendingRecords);
+		}
+		pendingRecords.clear();
+		if (force)
+		{
+			channel.force(false);
+		}
+	}
+	
+	/**
+	 * Commits what's left, waits for the whole journal to be physically written, and closes the file. The journal stays on disk until it's deleted
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		try
+		{
+			commit();
+			if (!force)
+			{
+				channel.force(false);
+			}
+		}
+		finally
+		{
+			channel.close();
+		}
+	}
+	
+	/**
+	 * Replays a route's journal, if it has one, onto the end of its timeline
+	 * Records past the first one that is cut off or fails its checksum are dropped, and the journal file is cut back to match
+	 * @param routeFile - the route file whose journal should be replayed
+	 * @param timeline - the route's timeline as loaded from the route file. Cut back to the journal's base length, then the records are added
+	 * @param schema - the route's schema. The journal must have been written for the same number of channels
+	 * @return - number of measurements replayed, or -1 if there was no usable journal
+	 * @throws IOException - if the journal can't be read
+	 */
+	public static int recover(File routeFile, RouteTimeline timeline, ChannelSchema schema) throws IOException
+	{
+		File journalFile = fileFor(routeFile);
+		if (!journalFile.exists())
+		{
+			return -1;
+		}
+		
+		try (FileChannel channel = FileChannel.open(journalFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE))
+		{
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+			while (header.hasRemaining() && channel.read(header) != -1)
+			{
+				//Keep reading until the header is filled or the file ends
+			}
+			header.flip();
+			if (header.limit() < HEADER_SIZE || !hasJournalMagic(header.array()))
+			{
+				//Torn before the header was finished, so there's nothing to replay
+				channel.truncate(0);
+				return -1;
+			}
+			header.position(MAGIC.length);
+			int formatVersion = Short.toUnsignedInt(header.getShort());
+			int analogChannelCount = Short.toUnsignedInt(header.getShort());
+			int digitalChannelCount = Short.toUnsignedInt(header.getShort());
+			header.getShort();
+			int baseLength = header.getInt();
+			if (formatVersion != FORMAT_VERSION || analogChannelCount != schema.getAnalogChannelCount() || digitalChannelCount != schema.getDigitalChannelCount())
+			{
+				throw new IOException("Journal " + journalFile + " was written with a different layout");
+			}
+			
+			//Journaled records come after the base, whatever the route file had past that point is replaced
+			if (timeline.length() > baseLength)
+			{
+				timeline.truncate(baseLength);
+			}
+			
+			int recordSize = recordSize(analogChannelCount);
+			ByteBuffer record = ByteBuffer.allocate(recordSize).order(ByteOrder.LITTLE_ENDIAN);
+			CRC32 crc = new CRC32();
+			double[] analogValues = new double[analogChannelCount];
+			long goodEnd = HEADER_SIZE;
+			int replayed = 0;
+			while (true)
+			{
+				record.clear();
+				while (record.hasRemaining() && channel.read(record) != -1)
+				{
+					//Keep reading until the record is filled or the file ends
+				}
+				if (record.hasRemaining())
+				{
+					//Cut off partway through
+					break;
+				}
+				crc.reset();
+				crc.update(record.array(), 0, recordSize - Integer.BYTES);
+				record.flip();
+				long spacingNanos = record.getLong();
+				for (int c = 0; c < analogValues.length; c++)
+				{
+					analogValues[c] = record.getDouble();
+				}
+				int digitalMask = record.getInt();
+				if (record.getInt() != (int)crc.getValue())
+				{
+					//Garbage from a torn write
+					break;
+				}
+				timeline.addNanos(analogValues, digitalMask, spacingNanos);
+				goodEnd += recordSize;
+				replayed++;
+			}
+			
+			//Drop the torn tail so appending to this journal again can't leave garbage in the middle
+			if (channel.size() > goodEnd)
+			{
+				channel.truncate(goodEnd);
+			}
+			return replayed;
+		}
+	}
+	
+	/**
+	 * Deletes a route's journal, once the route file holds everything in it
+	 * @param routeFile - the route file whose journal should be deleted
+	 */
+	public static void delete(File routeFile)
+	{
+		fileFor(routeFile).delete();
+	}
+	
+	/**
+	 * @param analogChannelCount - number of analog values in each record
+	 * @return - size of one record
+	 */
+	private static int recordSize(int analogChannelCount)
+	{
+		return Long.BYTES + Double.BYTES * analogChannelCount + Integer.BYTES + Integer.BYTES;
+	}
+	
+	/**
+	 * @param bytes - the start of a file
+	 * @return - true if it starts with the journal magic number
+	 */
+	private static boolean hasJournalMagic(byte[] bytes)
+	{
+		for (int i = 0; i < MAGIC.length; i++)
+		{
+			if (bytes[i] != MAGIC[i])
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+}
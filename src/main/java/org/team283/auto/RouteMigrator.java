@@ -0,0 +1,89 @@
+package org.team283.auto;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * One-shot conversion of json route files into the binary format
+ * 
+ * Routes are rewritten in place, keeping their name and extension. Files that are already binary are left alone
+ * 
+ * Example Usage:
+ *  RouteMigrator.migrateFolder(new File(PhantomJoystick.ROOT_SEARCH_FOLDER)) //Converts every json route under /home
+ *  
+ *  or from a command line, with any number of folders
+ *  
+ *  java org.team283.auto.RouteMigrator /home/lvuser/frc/routes
+ */
+public class RouteMigrator 
+{
+	public static void main(String[] args)
+	{
+		if (args.length == 0)
+		{
+			args = new String[] {PhantomJoystick.ROOT_SEARCH_FOLDER};
+		}
+		int migrated = 0;
+		for (String folder : args)
+		{
+			migrated += migrateFolder(new File(folder));
+		}
+		System.out.println("RouteMigrator: converted " + migrated + " route(s) to binary.");
+	}
+	
+	/**
+	 * Converts a single route file if it's json
+	 * @param file - a .route file
+	 * @return - true if the file was converted, false if it was already binary
+	 * @throws IOException - if the file can't be read
+	 */
+	public static boolean migrate(File file) throws IOException
+	{
+		if (RouteFormat.detect(file) != RouteFormat.JSON)
+		{
+			return false;
+		}
+		PhantomRoute route = new PhantomRoute(file.getAbsolutePath());
+		route.setFormat(RouteFormat.BINARY);
+		route.save();
+		return true;
+	}
+	
+	/**
+	 * Converts every json .route file in a folder and all folders inside it
+	 * @param folder - folder to search
+	 * @return - number of files converted
+	 */
+	public static int migrateFolder(File folder)
+	{
+		int migrated = 0;
+		File[] files = folder.listFiles();
+		if (files == null)
+		{
+			return 0;
+		}
+		for (File file : files)
+		{
+			if (file.isDirectory())
+			{
+				migrated += migrateFolder(file);
+			}
+			else if (file.getName().toLowerCase().endsWith("." + PhantomRoute.EXTENSION))
+			{
+				try
+				{
+					if (migrate(file))
+					{
+						System.out.println("RouteMigrator: converted " + file.getAbsolutePath());
+						migrated++;
+					}
+				}
+				catch (IOException e)
+				{
+					e.printStackTrace();
+				}
+			}
+		}
+		return migrated;
+	}
+}
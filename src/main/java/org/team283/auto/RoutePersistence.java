@@ -0,0 +1,219 @@
+package org.team283.auto;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.team283.util.Logger;
+
+/**
+ * Saves PhantomRoutes on a background thread, so the robot loop never waits on the roboRIO's flash
+ *
+ * save() copies the route on the calling thread and hands the copy to a single writer thread. That copy is a few array copies,
+ * which is far cheaper than the file write it replaces. Routes whose generation is already on disk are skipped entirely, so saving
+ * every route after a recording only writes the ones that changed
+ *
+ * Saves of the same route are coalesced: if a save is still waiting in the queue when another one is requested,
+ * the waiting save just picks up the newer copy and both callers get the same Future
+ *
+ * Example Usage:
+ *  RoutePersistence persistence = new RoutePersistence();
+ *  persistence.save(route);   //Returns immediately
+ *  ...
+ *  persistence.flush();       //Blocks until everything queued so far is on disk
+ */
+public class RoutePersistence
+{
+	/** Most saves that can wait in the queue at once. Coalescing keeps this at one per route */
+	public final static int QUEUE_CAPACITY = 64;
+	
+	/** Printouts about failed saves */
+	private final static Logger log = new Logger("RoutePersistence", Logger.Level.INFO);
+	
+	/** The one writer thread and its bounded queue */
+	private final ThreadPoolExecutor executor;
+	
+	/** Saves that are queued but haven't started writing yet, by route */
+	private final ConcurrentHashMap<PhantomRoute, PendingSave> pending = new ConcurrentHashMap<PhantomRoute, PendingSave>();
+	
+	/**
+	 * A copy of a route, and the route's generation when it was copied
+	 */
+	private static class Snapshot
+	{
+		/** The copied route data */
+		private final RouteData data;
+		
+		/** See PhantomRoute.getGeneration() */
+		private final long generation;
+		
+		private Snapshot(RouteData data, long generation)
+		{
+			this.data = data;
+			this.generation = generation;
+		}
+	}
+	
+	/**
+	 * A queued save of one route. Holds the newest snapshot, which can be swapped out until the writer picks it up
+	 */
+	private class PendingSave implements Runnable
+	{
+		/** Route being saved */
+		private final PhantomRoute route;
+		
+		/** Completed when the snapshot has been written, or failed to be */
+		private final CompletableFuture<PhantomRoute.SaveResult> future = new CompletableFuture<PhantomRoute.SaveResult>();
+		
+		/** The newest copy of the route. Replaced when a save is coalesced into this one */
+		private volatile Snapshot snapshot;
+		
+		private PendingSave(PhantomRoute route, Snapshot snapshot)
+		{
+			this.route = route;
+			this.snapshot = snapshot;
+		}
+		
+		@Override
+		public void run()
+		{
+			//From here on, new saves of this route need their own write
+			pending.remove(route, this);
+			Snapshot copy = snapshot;
+			try
+			{
+				future.complete(route.write(copy.data, copy.generation));
+			}
+			catch (IOException e)
+			{
+				//The route stays dirty, so the next save tries again
+				log.error("could not save " + route.getName() + ", failed " + route.getSaveFailures() + " time(s) so far. " + e.getMessage());
+				future.completeExceptionally(e);
+			}
+		}
+	}
+	
+	public RoutePersistence()
+	{
+		executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(QUEUE_CAPACITY), (runnable) ->
+		{
+			Thread thread = new Thread(runnable, "PhantomRoute writer");
+			//Don't keep the robot program alive just to finish writing
+			thread.setDaemon(true);
+			//Below the robot loop, so writing never competes with it
+			thread.setPriority(Thread.MIN_PRIORITY);
+			return thread;
+		});
+	}
+	
+	/**
+	 * Queues a route to be written in the background. Does nothing if the route hasn't changed since it was last saved
+	 * Must be called from the thread that modifies the route, since the route is copied here
+	 * @param route - route to save
+	 * @return - completes with what was written once the route is on disk. Completes exceptionally with the IOException if writing fails
+	 */
+	public Future<PhantomRoute.SaveResult> save(PhantomRoute route)
+	{
+		PendingSave queued = pending.get(route);
+		long generation = route.getGeneration();
+		if (!route.isDirty())
+		{
+			return CompletableFuture.completedFuture(new PhantomRoute.SaveResult(false, 0, 0, generation));
+		}
+		if (queued != null && queued.snapshot.generation == generation)
+		{
+			//Already queued with the route as it is now
+			return queued.future;
+		}
+		
+		Snapshot snapshot = new Snapshot(route.takeSnapshot(), generation);
+		if (queued != null)
+		{
+			//Still waiting in the queue, so it can write the newer copy instead
+			queued.snapshot = snapshot;
+			if (pending.get(route) == queued)
+			{
+				return queued.future;
+			}
+			//It started writing while the snapshot was being swapped in, so it may have written the old one. Queue another
+		}
+		
+		PendingSave save = new PendingSave(route, snapshot);
+		pending.put(route, save);
+		try
+		{
+			executor.execute(save);
+		}
+		catch (RejectedExecutionException e)
+		{
+			pending.remove(route, save);
+			log.error("save queue is full, " + route.getName() + " was not saved");
+			save.future.completeExceptionally(e);
+		}
+		return save.future;
+	}
+	
+	/**
+	 * Blocks until every save queued before this call has finished
+	 * @throws InterruptedException - if interrupted while waiting
+	 */
+	public void flush() throws InterruptedException
+	{
+		try
+		{
+			//There's only one writer, so once a no-op gets through, everything before it has too
+			executor.submit(() -> {}).get();
+		}
+		catch (ExecutionException e)
+		{
+			//A no-op can't fail
+		}
+	}
+	
+	/**
+	 * Blocks until every save queued before this call has finished, or the timeout passes
+	 * @param timeout - longest time to wait
+	 * @param unit - unit of the timeout
+	 * @return - true if everything finished, false if the timeout passed first
+	 * @throws InterruptedException - if interrupted while waiting
+	 */
+	public boolean flush(long timeout, TimeUnit unit) throws InterruptedException
+	{
+		try
+		{
+			executor.submit(() -> {}).get(timeout, unit);
+			return true;
+		}
+		catch (ExecutionException e)
+		{
+			return true;
+		}
+		catch (TimeoutException e)
+		{
+			return false;
+		}
+	}
+	
+	/**
+	 * @return - number of saves waiting to be written
+	 */
+	public int getQueuedCount()
+	{
+		return executor.getQueue().size();
+	}
+	
+	/**
+	 * Finishes the saves already queued, then stops the writer thread. Saves after this are rejected
+	 */
+	public void shutdown()
+	{
+		executor.shutdown();
+	}
+}
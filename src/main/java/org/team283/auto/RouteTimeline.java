@@ -0,0 +1,436 @@
+package org.team283.auto;
+
+import java.util.Arrays;
+
+/**
+ * Columnar storage for the joystick timelines of a single route
+ * 
+ * Every analog channel gets its own primitive double column, all digital channels of a measurement are packed into one int bitmask,
+ * and the time of each measurement gets its own long column. Nothing is boxed, so a long route is a handful of arrays instead of thousands of tiny objects.
+ * 
+ * Columns grow by doubling, so add() is amortized O(1) and allocates nothing while there is spare capacity
+ * 
+ * Time is kept as nanoseconds since the start of the recording, so finding the measurement for a point in time is a binary search
+ * instead of a walk from the start, and recordings timed by System.nanoTime() keep their full precision. Spacing in ms is worked out
+ * from the timestamps as the difference of their rounded values, so the ms spacing of a route always adds up to its rounded duration
+ * and routes recorded in whole ms get exactly their old spacing back
+ */
+public class RouteTimeline 
+{
+	/** Starting capacity for new recordings. Enough for 15 seconds of measurements 20ms apart */
+	public final static int DEFAULT_CAPACITY = 750;
+	
+	/** Nanoseconds in a millisecond */
+	public final static long NANOS_PER_MS = 1_000_000;
+	
+	/** One column per analog channel. analog[channel][index] */
+	private double[][] analog;
+	
+	/** One bitmask per measurement. Bit n holds the value of digital channel n */
+	private int[] digital;
+	
+	/** In nanoseconds, the time from the start of the recording to each measurement. The spacing of a measurement is its timestamp minus the one before */
+	private long[] timestamps;
+	
+	/** Number of measurements actually stored. The columns are usually longer than this */
+	private int length;
+	
+	/**
+	 * Creates an empty timeline with one analog column per analog channel of the default schema
+	 * @param capacity - number of measurements to make room for up front
+	 */
+	public RouteTimeline(int capacity)
+	{
+		this(RouteData.analogChannelCount, capacity);
+	}
+	
+	/**
+	 * @param analogChannelCount - number of analog columns. See ChannelSchema.getAnalogChannelCount()
+	 * @param capacity - number of measurements to make room for up front
+	 */
+	public RouteTimeline(int analogChannelCount, int capacity)
+	{
+		capacity = Math.max(capacity, 1);
+		this.analog = new double[analogChannelCount][capacity];
+		this.digital = new int[capacity];
+		this.timestamps = new long[capacity];
+		this.length = 0;
+	}
+	
+	/**
+	 * Creates an empty timeline with the default capacity
+	 */
+	public RouteTimeline()
+	{
+		this(DEFAULT_CAPACITY);
+	}
+	
+	/**
+	 * Creates a new RouteTimeline as a copy of the passed RouteTimeline. The copy is trimmed to the passed timeline's length
+	 * @param other - the timeline to be copied
+	 */
+	public RouteTimeline(RouteTimeline other)
+	{
+		this(other.analog.length, other.length);
+		for (int c = 0; c < analog.length; c++)
+		{
+			System.arraycopy(other.analog[c], 0, this.analog[c], 0, other.length);
+		}
+		System.arraycopy(other.digital, 0, this.digital, 0, other.length);
+		System.arraycopy(other.timestamps, 0, this.timestamps, 0, other.length);
+		this.length = other.length;
+	}
+	
+	/**
+	 * Wraps already filled columns without copying them. Used by the file readers
+	 * @param analog - one column per analog channel
+	 * @param digital - one bitmask per measurement
+	 * @param timestamps - ns from the start of the recording to each measurement
+	 * @param length - number of measurements in the columns
+	 */
+	RouteTimeline(double[][] analog, int[] digital, long[] timestamps, int length)
+	{
+		this.analog = analog;
+		this.digital = digital;
+		this.timestamps = timestamps;
+		this.length = length;
+	}
+	
+	/**
+	 * @return - number of analog columns
+	 */
+	public int getAnalogChannelCount()
+	{
+		return analog.length;
+	}
+	
+	/**
+	 * @param nanos - a time in ns
+	 * @return - the time in ms, rounded to the nearest
+	 */
+	public static long toMillis(long nanos)
+	{
+		return Math.floorDiv(nanos + NANOS_PER_MS / 2, NANOS_PER_MS);
+	}
+	
+	/**
+	 * Packs an array of button values into a bitmask
+	 * @param digitalValues - button values. Index n becomes bit n
+	 * @return - the packed bitmask
+	 */
+	public static int packDigital(boolean[] digitalValues)
+	{
+		int mask = 0;
+		for (int d = 0; d < digitalValues.length; d++)
+		{
+			if (digitalValues[d])
+			{
+				mask |= (1 << d);
+			}
+		}
+		return mask;
+	}
+	
+	/**
+	 * @param channel - which axis to grab from
+	 * @param index - which measurement value to return
+	 * @return - the axis value at that index
+	 */
+	public double getAnalog(int channel, int index)
+	{
+		checkIndex(index);
+		return analog[channel][index];
+	}
+	
+	/**
+	 * @param channel - which button to grab from
+	 * @param index - which measurement value to return
+	 * @return - the button value at that index
+	 */
+	public boolean getDigital(int channel, int index)
+	{
+		checkIndex(index);
+		return (digital[index] & (1 << channel)) != 0;
+	}
+	
+	/**
+	 * @param index - which measurement value to return
+	 * @return - all button values at that index, packed so that bit n is digital channel n
+	 */
+	public int getDigitalMask(int index)
+	{
+		checkIndex(index);
+		return digital[index];
+	}
+	
+	/**
+	 * @param index - the measurement in question
+	 * @return - In milliseconds, the duration since the measurement before this one was taken. The difference of the rounded timestamps
+	 */
+	public int getSpacing(int index)
+	{
+		checkIndex(index);
+		return (int)(toMillis(timestamps[index]) - (index == 0 ? 0 : toMillis(timestamps[index - 1])));
+	}
+	
+	/**
+	 * @param index - the measurement in question
+	 * @return - In nanoseconds, the duration since the measurement before this one was taken
+	 */
+	public long getSpacingNanos(int index)
+	{
+		checkIndex(index);
+		return timestamps[index] - (index == 0 ? 0 : timestamps[index - 1]);
+	}
+	
+	/**
+	 * @param index - the measurement in question
+	 * @return - In milliseconds, the time from the start of the recording to that measurement, rounded to the nearest
+	 */
+	public long getTimestamp(int index)
+	{
+		checkIndex(index);
+		return toMillis(timestamps[index]);
+	}
+	
+	/**
+	 * @param index - the measurement in question
+	 * @return - In nanoseconds, the time from the start of the recording to that measurement
+	 */
+	public long getTimestampNanos(int index)
+	{
+		checkIndex(index);
+		return timestamps[index];
+	}
+	
+	/**
+	 * @return - true if every timestamp is a whole number of ms, like every route recorded before timestamps were kept in ns
+	 * Such a timeline loses nothing when it's saved in a format that only holds ms
+	 */
+	public boolean isWholeMillis()
+	{
+		for (int i = 0; i < length; i++)
+		{
+			if (timestamps[i] % NANOS_PER_MS != 0)
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * @param time - value in ms, the time that has passed since playback began
+	 * @return - Which value the timeline should spit out given the time. Equal to length() once the time runs past the end of the timeline
+	 */
+	public int indexFromTime(long time)
+	{
+		return indexFromTimeNanos(time * NANOS_PER_MS);
+	}
+	
+	/**
+	 * @param time - value in ms, the time that has passed since playback began
+	 * @param previousIndex - a value returned by an earlier call with an earlier or equal time. 0 to start from the beginning
+	 * @return - Which value the timeline should spit out given the time. Equal to length() once the time runs past the end of the timeline
+	 */
+	public int indexFromTime(long time, int previousIndex)
+	{
+		return indexFromTimeNanos(time * NANOS_PER_MS, previousIndex);
+	}
+	
+	/**
+	 * Binary searches the timestamps
+	 * Matches the original behaviour of walking the spacing values: the result is the number of spacing values that have to be added up to reach the passed time
+	 * @param time - value in ns, the time that has passed since playback began
+	 * @return - Which value the timeline should spit out given the time. Equal to length() once the time runs past the end of the timeline
+	 */
+	public int indexFromTimeNanos(long time)
+	{
+		if (time <= 0)
+		{
+			return 0;
+		}
+		
+		//Find the first measurement whose timestamp is at or past the time
+		int low = 0;
+		int high = length;
+		while (low < high)
+		{
+			int middle = (low + high) >>> 1;
+			if (timestamps[middle] < time)
+			{
+				low = middle + 1;
+			}
+			else
+			{
+				high = middle;
+			}
+		}
+		
+		//low == length when the time is past the end, which also returns length
+		return Math.min(low + 1, length);
+	}
+	
+	/**
+	 * Same result as indexFromTimeNanos(time), but walks forward from a previous result instead of searching the whole timeline
+	 * Playback time only moves forward, so a cursor that is advanced every cycle costs amortized O(1)
+	 * @param time - value in ns, the time that has passed since playback began
+	 * @param previousIndex - a value returned by an earlier call with an earlier or equal time. 0 to start from the beginning
+	 * @return - Which value the timeline should spit out given the time. Equal to length() once the time runs past the end of the timeline
+	 */
+	public int indexFromTimeNanos(long time, int previousIndex)
+	{
+		if (time <= 0)
+		{
+			return 0;
+		}
+		
+		//Number of measurements before the time. The previous result was one more than this count at an earlier time
+		int before = Math.max(Math.min(previousIndex, length) - 1, 0);
+		
+		//If time went backwards the cursor is no use, so fall back to the search
+		if (before > 0 && timestamps[before - 1] >= time)
+		{
+			return indexFromTimeNanos(time);
+		}
+		
+		while (before < length && timestamps[before] < time)
+		{
+			before++;
+		}
+		return Math.min(before + 1, length);
+	}
+	
+	/**
+	 * @return - Number of measurements stored
+	 */
+	public int length()
+	{
+		return length;
+	}
+	
+	/**
+	 * @return - about how many bytes of heap the columns take up, counting their spare capacity
+	 */
+	public long sizeInBytes()
+	{
+		return (long)timestamps.length * (Double.BYTES * analog.length + Integer.BYTES + Long.BYTES);
+	}
+	
+	/**
+	 * Appends one measurement onto the end of every column
+	 * @param analogValues - one value per analog channel. Copied, so the caller can reuse the array
+	 * @param digitalMask - button values, bit n is digital channel n
+	 * @param spacing - ms since the previous measurement
+	 */
+	public void add(double[] analogValues, int digitalMask, int spacing)
+	{
+		addNanos(analogValues, digitalMask, spacing * NANOS_PER_MS);
+	}
+	
+	/**
+	 * Appends one measurement onto the end of every column
+	 * @param analogValues - one value per analog channel. Copied, so the caller can reuse the array
+	 * @param digitalMask - button values, bit n is digital channel n
+	 * @param spacingNanos - ns since the previous measurement
+	 */
+	public void addNanos(double[] analogValues, int digitalMask, long spacingNanos)
+	{
+		ensureCapacity(length + 1);
+		for (int c = 0; c < analog.length; c++)
+		{
+			analog[c][length] = analogValues[c];
+		}
+		this.digital[length] = digitalMask;
+		this.timestamps[length] = (length == 0 ? 0 : timestamps[length - 1]) + spacingNanos;
+		length++;
+	}
+	
+	/**
+	 * Appends one measurement onto the end of every column
+	 * @param analogValues - one value per analog channel
+	 * @param digitalValues - one value per digital channel
+	 * @param spacing - ms since the previous measurement
+	 */
+	public void add(double[] analogValues, boolean[] digitalValues, int spacing)
+	{
+		add(analogValues, packDigital(digitalValues), spacing);
+	}
+	
+	/**
+	 * Forgets every measurement past the passed length
+	 * @param length - number of measurements to keep. Ignored if it's not shorter than the timeline
+	 */
+	public void truncate(int length)
+	{
+		if (length >= 0 && length < this.length)
+		{
+			this.length = length;
+		}
+	}
+	
+	/**
+	 * Forgets all measurements. Keeps the allocated columns so they can be recorded into again
+	 */
+	public void clear()
+	{
+		length = 0;
+	}
+	
+	/**
+	 * Grows every column so that at least the passed number of measurements fit
+	 * @param capacity - number of measurements needed
+	 */
+	public void ensureCapacity(int capacity)
+	{
+		if (capacity > timestamps.length)
+		{
+			//Double the size, so that a long recording only has to grow a few times
+			int newCapacity = Math.max(capacity, timestamps.length * 2);
+			for (int c = 0; c < analog.length; c++)
+			{
+				analog[c] = Arrays.copyOf(analog[c], newCapacity);
+			}
+			digital = Arrays.copyOf(digital, newCapacity);
+			timestamps = Arrays.copyOf(timestamps, newCapacity);
+		}
+	}
+	
+	/**
+	 * The backing columns are exposed to the file writers so they can be written in bulk. Only the first length() values are meaningful
+	 * @param channel - which axis column to return
+	 * @return - the backing column for that axis
+	 */
+	double[] analogColumn(int channel)
+	{
+		return analog[channel];
+	}
+	
+	/**
+	 * @return - the backing column of digital bitmasks
+	 */
+	int[] digitalColumn()
+	{
+		return digital;
+	}
+	
+	/**
+	 * @return - the backing timestamp column, in ns
+	 */
+	long[] timestampColumn()
+	{
+		return timestamps;
+	}
+	
+	/**
+	 * Throws if the index is past the recorded measurements. The columns are longer than the timeline, so the array bounds check alone isn't enough
+	 * @param index - index to check
+	 */
+	private void checkIndex(int index)
+	{
+		if (index < 0 || index >= length)
+		{
+			throw new IndexOutOfBoundsException("Index " + index + " out of bounds for length " + length);
+		}
+	}
+}
@@ -0,0 +1,255 @@
+package org.team283.auto;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.team283.util.Logger;
+
+/**
+ * Watches a folder, and every folder inside it, for route files being added, changed or deleted
+ *
+ * A daemon thread waits on a WatchService. Copying a file onto the robot fires a burst of events for the same file, so a file
+ * is only looked at once it has been quiet for DEBOUNCE_MS. Then its header is read, just like RouteCatalog does, and the
+ * result is queued as a Change. Nothing is touched on the robot thread until it calls poll(), so stored routes are only ever
+ * changed by the thread that uses them
+ *
+ * Example Usage:
+ *  RouteWatcher watcher = new RouteWatcher(new File("/home/lvuser/frc/routes"));
+ *  ...
+ *  RouteWatcher.Change change;
+ *  while ((change = watcher.poll()) != null) ...  //On the robot thread
+ *  ...
+ *  watcher.close();
+ */
+public class RouteWatcher implements Closeable
+{
+	/** How long a file must go without events before it's read. Long enough for a copy over scp to finish */
+	public final static long DEBOUNCE_MS = 500;
+	
+	/** Printouts about the watcher */
+	private final static Logger log = new Logger("RouteWatcher", Logger.Level.INFO);
+	
+	/**
+	 * A route file that was added, changed or deleted
+	 */
+	public static class Change
+	{
+		/** Absolute path to the route file */
+		public final String path;
+		
+		/** What the file holds now, or null if it was deleted */
+		public final RouteCatalog.Entry entry;
+		
+		private Change(String path, RouteCatalog.Entry entry)
+		{
+			this.path = path;
+			this.entry = entry;
+		}
+	}
+	
+	/** Delivers events for every registered folder */
+	private final WatchService watchService;
+	
+	/** The folder each registered key belongs to. Only used on the watcher thread */
+	private final HashMap<WatchKey, Path> folders = new HashMap<WatchKey, Path>();
+	
+	/** Files with events that haven't been quiet long enough yet, and the time of their last event in ns. Only used on the watcher thread */
+	private final HashMap<Path, Long> unsettled = new HashMap<Path, Long>();
+	
+	/** Changes waiting for the robot thread */
+	private final ConcurrentLinkedQueue<Change> changes = new ConcurrentLinkedQueue<Change>();
+	
+	/** The watcher thread */
+	private final Thread thread;
+	
+	/**
+	 * Starts watching. The folder is created if it doesn't exist yet
+	 * @param folder - folder to watch, including all folders inside it
+	 * @throws IOException - if the folder can't be watched
+	 */
+	public RouteWatcher(File folder) throws IOException
+	{
+		folder.mkdirs();
+		watchService = FileSystems.getDefault().newWatchService();
+		registerAll(folder.getAbsoluteFile().toPath(), false);
+		
+		thread = new Thread(this::run, "PhantomRoute watcher");
+		//Don't keep the robot program alive just to watch files
+		thread.setDaemon(true);
+		thread.setPriority(Thread.MIN_PRIORITY);
+		thread.start();
+	}
+	
+	/**
+	 * @return - the oldest change that hasn't been handled yet, or null if there are none. Never blocks
+	 */
+	public Change poll()
+	{
+		return changes.poll();
+	}
+	
+	/**
+	 * @return - true if there are changes waiting
+	 */
+	public boolean hasChanges()
+	{
+		return !changes.isEmpty();
+	}
+	
+	/**
+	 * Stops the watcher thread. Changes already queued can still be polled
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		watchService.close();
+	}
+	
+	/**
+	 * Body of the watcher thread
+	 */
+	private void run()
+	{
+		try
+		{
+			while (true)
+			{
+				WatchKey key;
+				if (unsettled.isEmpty())
+				{
+					key = watchService.take();
+				}
+				else
+				{
+					key = watchService.poll(DEBOUNCE_MS, TimeUnit.MILLISECONDS);
+				}
+				if (key != null)
+				{
+					handleEvents(key);
+				}
+				publishSettled();
+			}
+		}
+		catch (InterruptedException | ClosedWatchServiceException e)
+		{
+			//Closed, nothing left to do
+		}
+	}
+	
+	/**
+	 * Notes every route file a key reports on, and starts watching new folders
+	 * @param key - key that was signalled
+	 */
+	private void handleEvents(WatchKey key)
+	{
+		Path folder = folders.get(key);
+		for (WatchEvent<?> event : key.pollEvents())
+		{
+			if (event.kind() == StandardWatchEventKinds.OVERFLOW)
+			{
+				//Events were lost, so anything in the folder may have changed
+				log.warn("missed events in " + folder + ", checking every route in it");
+				registerAll(folder, true);
+				continue;
+			}
+			Path path = folder.resolve((Path)event.context());
+			if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && path.toFile().isDirectory())
+			{
+				//Routes may have been copied in along with the folder, before it could be registered
+				registerAll(path, true);
+			}
+			else if (RouteCatalog.isRouteFile(path.toFile()))
+			{
+				unsettled.put(path, System.nanoTime());
+			}
+		}
+		if (!key.reset())
+		{
+			//The folder itself is gone. Its routes got their own delete events
+			folders.remove(key);
+		}
+	}
+	
+	/**
+	 * Watches a folder and every folder inside it
+	 * @param folder - folder to watch
+	 * @param markRoutes - true to treat every route file found as changed
+	 */
+	private void registerAll(Path folder, boolean markRoutes)
+	{
+		try
+		{
+			WatchKey key = folder.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+			folders.put(key, folder);
+		}
+		catch (IOException e)
+		{
+			log.warn("could not watch " + folder + ". " + e.getMessage());
+			return;
+		}
+		File[] files = folder.toFile().listFiles();
+		if (files == null)
+		{
+			return;
+		}
+		for (File file : files)
+		{
+			if (file.isDirectory())
+			{
+				registerAll(file.toPath(), markRoutes);
+			}
+			else if (markRoutes && RouteCatalog.isRouteFile(file))
+			{
+				unsettled.put(file.toPath(), System.nanoTime());
+			}
+		}
+	}
+	
+	/**
+	 * Reads every file that has been quiet for long enough and queues what it holds now
+	 */
+	private void publishSettled()
+	{
+		long now = System.nanoTime();
+		Iterator<Map.Entry<Path, Long>> iterator = unsettled.entrySet().iterator();
+		while (iterator.hasNext())
+		{
+			Map.Entry<Path, Long> unsettledFile = iterator.next();
+			if (now - unsettledFile.getValue() < TimeUnit.MILLISECONDS.toNanos(DEBOUNCE_MS))
+			{
+				continue;
+			}
+			iterator.remove();
+			
+			File file = unsettledFile.getKey().toFile();
+			String path = file.getAbsolutePath();
+			if (!file.isFile())
+			{
+				changes.add(new Change(path, null));
+				continue;
+			}
+			try
+			{
+				changes.add(new Change(path, RouteCatalog.Entry.read(file)));
+			}
+			catch (IOException | RuntimeException e)
+			{
+				//Most likely still being written. Finishing the write fires another event
+				log.warn("could not read " + path + ", skipping it. " + e.getMessage());
+			}
+		}
+	}
+}
@@ -0,0 +1,214 @@
+package org.team283.auto;
+
+/**
+ * A lock-free ring buffer that hands measurements from one sampling thread to one consuming thread
+ *
+ * Each slot is a frame of primitives: the analog values, the button bitmask and the time it was taken. Frames live in flat arrays
+ * allocated up front, so offer() and drain() never allocate. Exactly one thread may call offer() and exactly one other thread may call
+ * drain(); that's what lets this work without locks or compare-and-set
+ *
+ * The producer and consumer each own a position counter. A counter is only written by its owner, published with a volatile write
+ * once a whole frame (or batch of frames) is in place, and read by the other side. Each counter sits in its own padded object so the
+ * two threads never write to the same cache line. Each side also keeps its own cached copy of the other's counter, and only rereads
+ * the real one when the cached copy says the ring is full (producer) or empty (consumer)
+ *
+ * When the ring is full, offer() drops the new frame and counts it as an overflow instead of waiting, since the sampler must never block.
+ * Frames carry their own timestamp, so a dropped frame shows up as a longer gap rather than shifting everything after it
+ *
+ * Example Usage:
+ *  SampleRing ring = new SampleRing(256, schema.getAnalogChannelCount());
+ *  ring.offer(analogValues, digitalMask, elapsedNanos);        //Sampler thread
+ *  ring.drain((analog, mask, nanos) -> ..., Integer.MAX_VALUE);  //Robot thread
+ */
+public class SampleRing
+{
+	/**
+	 * Receives drained frames
+	 */
+	public interface Sink
+	{
+		/**
+		 * @param analogValues - the frame's analog values. Reused for the next frame, so copy anything that has to be kept
+		 * @param digitalMask - the frame's button bitmask
+		 * @param elapsedNanos - when the frame was taken
+		 */
+		void accept(double[] analogValues, int digitalMask, long elapsedNanos);
+	}
+	
+	/**
+	 * Cache line padding in front of a Sequence's fields. Superclass fields are laid out first, so this can't be reordered past them
+	 */
+	static class SequencePadBefore
+	{
+		long p01, p02, p03, p04, p05, p06, p07;
+	}
+	
+	/**
+	 * The fields of a Sequence
+	 */
+	static class SequenceFields extends SequencePadBefore
+	{
+		/** Frames passed so far. Written only by the owning thread */
+		volatile long value;
+		
+		/** The owner's last read of the other side's value. Never read by the other side */
+		long cachedOther;
+	}
+	
+	/**
+	 * One side's position counter, padded on both sides so nothing else shares its cache line
+	 */
+	static class Sequence extends SequenceFields
+	{
+		long p11, p12, p13, p14, p15, p16, p17;
+	}
+	
+	/** Number of slots, a power of two */
+	private final int capacity;
+	
+	/** capacity - 1, turns a position into a slot */
+	private final int mask;
+	
+	/** Analog values per frame */
+	private final int analogChannelCount;
+	
+	/** Analog values of every slot, analogChannelCount per slot */
+	private final double[] analog;
+	
+	/** Button bitmask of every slot */
+	private final int[] digital;
+	
+	/** Time of every slot */
+	private final long[] nanos;
+	
+	/** Frames offered. Owned by the producer */
+	private final Sequence produced = new Sequence();
+	
+	/** Frames drained. Owned by the consumer */
+	private final Sequence consumed = new Sequence();
+	
+	/** Frames dropped because the ring was full. Written only by the producer */
+	private volatile long overflows = 0;
+	
+	/** Most frames that were ever waiting at once. Written only by the producer */
+	private volatile int highWaterMark = 0;
+	
+	/** The consumer copies each frame's analog values here before handing them to the sink */
+	private final double[] drainBuffer;
+	
+	/**
+	 * @param capacity - most frames that can wait to be drained. Rounded up to a power of two
+	 * @param analogChannelCount - analog values in each frame
+	 */
+	public SampleRing(int capacity, int analogChannelCount)
+	{
+		if (capacity < 1 || capacity > (1 << 30))
+		{
+			throw new IllegalArgumentException("Capacity must be between 1 and 2^30, got " + capacity);
+		}
+		this.capacity = (capacity == 1) ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+		this.mask = this.capacity - 1;
+		this.analogChannelCount = analogChannelCount;
+		this.analog = new double[this.capacity * analogChannelCount];
+		this.digital = new int[this.capacity];
+		this.nanos = new long[this.capacity];
+		this.drainBuffer = new double[analogChannelCount];
+	}
+	
+	/**
+	 * Adds a frame. Producer thread only. Never blocks and never allocates
+	 * @param analogValues - analog values, at least analogChannelCount of them. Copied into the ring
+	 * @param digitalMask - button bitmask
+	 * @param elapsedNanos - when the frame was taken
+	 * @return - false if the ring was full and the frame was dropped
+	 */
+	public boolean offer(double[] analogValues, int digitalMask, long elapsedNanos)
+	{
+		long position = produced.value;
+		if (position - produced.cachedOther >= capacity)
+		{
+			//Looks full, see how far the consumer has really got
+			produced.cachedOther = consumed.value;
+			if (position - produced.cachedOther >= capacity)
+			{
+				overflows++;
+				return false;
+			}
+		}
+		
+		int slot = (int)position & mask;
+		System.arraycopy(analogValues, 0, analog, slot * analogChannelCount, analogChannelCount);
+		digital[slot] = digitalMask;
+		nanos[slot] = elapsedNanos;
+		
+		int waiting = (int)(position + 1 - produced.cachedOther);
+		if (waiting > highWaterMark)
+		{
+			highWaterMark = waiting;
+		}
+		//The volatile write publishes the frame; the consumer reads value before the slot
+		produced.value = position + 1;
+		return true;
+	}
+	
+	/**
+	 * Hands waiting frames to a sink, oldest first. Consumer thread only. Never allocates
+	 * The frames are released back to the producer together once the batch is done
+	 * @param sink - receives each frame
+	 * @param limit - most frames to drain in this call
+	 * @return - number of frames drained
+	 */
+	public int drain(Sink sink, int limit)
+	{
+		long position = consumed.value;
+		if (consumed.cachedOther - position <= 0)
+		{
+			consumed.cachedOther = produced.value;
+		}
+		int count = (int)Math.min(consumed.cachedOther - position, limit);
+		for (int i = 0; i < count; i++)
+		{
+			int slot = (int)(position + i) & mask;
+			System.arraycopy(analog, slot * analogChannelCount, drainBuffer, 0, analogChannelCount);
+			sink.accept(drainBuffer, digital[slot], nanos[slot]);
+		}
+		if (count > 0)
+		{
+			//The volatile write hands the slots back to the producer
+			consumed.value = position + count;
+		}
+		return count;
+	}
+	
+	/**
+	 * @return - frames waiting to be drained. Only a snapshot when called while the other thread is running
+	 */
+	public int size()
+	{
+		return (int)(produced.value - consumed.value);
+	}
+	
+	/**
+	 * @return - number of slots
+	 */
+	public int capacity()
+	{
+		return capacity;
+	}
+	
+	/**
+	 * @return - frames dropped because the ring was full
+	 */
+	public long getOverflows()
+	{
+		return overflows;
+	}
+	
+	/**
+	 * @return - most frames that were ever waiting at once
+	 */
+	public int getHighWaterMark()
+	{
+		return highWaterMark;
+	}
+}
@@ -0,0 +1,177 @@
+package org.team283.auto;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A read-only PhantomRoute that plays an encoded route file without unpacking it
+ *
+ * The file is memory mapped, and a RouteCodec.Decoder walks through it as playback moves forward, so the route never exists
+ * as columns on the heap. Reads at or a few measurements behind the playback cursor are free, and reading ahead decodes
+ * forward to it. Reading further back starts over from the beginning of the file, so this is meant for playback, not editing
+ *
+ * Only encoded route files can be streamed. Anything that would change the route throws an UnsupportedOperationException,
+ * just like MappedPhantomRoute
+ *
+ * Example Usage:
+ *  PhantomRoute pr = new StreamingPhantomRoute("/home/lvuser/frc/routes/napalm_driver_left_side.route");
+ *  index = pr.indexFromTime(time, index);
+ *  pr.getAnalog(0, index);
+ */
+public class StreamingPhantomRoute extends PhantomRoute
+{
+	/** Walks through the mapped stream */
+	private RouteCodec.Decoder decoder;
+	
+	/** Number of measurements in the file */
+	private int length;
+	
+	/**
+	 * Maps an existing encoded route file
+	 * @param path - absolute file path to the saved route
+	 * @throws IOException - if the file can't be read or isn't an encoded route
+	 */
+	public StreamingPhantomRoute(String path) throws IOException
+	{
+		this.file = new File(path);
+		this.format = RouteFormat.ENCODED;
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ))
+		{
+			BinaryRouteFile header = BinaryRouteFile.readHeader(channel);
+			if (!header.isEncoded())
+			{
+				throw new IOException("Route file " + path + " is not encoded, play it with a MappedPhantomRoute instead");
+			}
+			//The mapping stays valid after the channel is closed
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			buffer.position(header.dataOffset);
+			this.decoder = new RouteCodec.Decoder(buffer, header.length, header.schema, BinaryRouteFile.ENCODED_UNIT_NANOS);
+			this.length = header.length;
+			this.routeData = header.routeData;
+		}
+	}
+	
+	@Override
+	public int indexFromTimeNanos(long time)
+	{
+		//No random access into the stream, so carry on from wherever the decoder got to. Lookups that move forward, or back by less than the window, decode little or nothing
+		return indexFromTimeNanos(time, decoder.getIndex() + 1);
+	}
+	
+	@Override
+	public int indexFromTimeNanos(long time, int previousIndex)
+	{
+		if (time <= 0)
+		{
+			return 0;
+		}
+		
+		//Number of measurements before the time. See RouteTimeline.indexFromTimeNanos(long, int)
+		int before = Math.max(Math.min(previousIndex, length) - 1, 0);
+		//Step back through the measurements still in the window, and only walk from the start if the time is before all of them
+		int windowStart = Math.max(decoder.getIndex() - RouteCodec.Decoder.WINDOW + 1, 0);
+		while (before > windowStart && before - 1 <= decoder.getIndex() && getTimestampNanos(before - 1) >= time)
+		{
+			before--;
+		}
+		if (before > 0 && getTimestampNanos(before - 1) >= time)
+		{
+			before = 0;
+		}
+		while (before < length && getTimestampNanos(before) < time)
+		{
+			before++;
+		}
+		return Math.min(before + 1, length);
+	}
+	
+	@Override
+	public double getAnalog(int channel, int index)
+	{
+		seek(index);
+		return decoder.getAnalog(channel, index);
+	}
+	
+	@Override
+	public boolean getDigital(int channel, int index)
+	{
+		seek(index);
+		return (decoder.getDigitalMask(index) & (1 << channel)) != 0;
+	}
+	
+	@Override
+	public long getTimestampNanos(int index)
+	{
+		seek(index);
+		return decoder.getTimestampNanos(index);
+	}
+	
+	@Override
+	public boolean isLoaded()
+	{
+		//Nothing to load, every read goes to the mapped file
+		return true;
+	}
+	
+	@Override
+	public int length()
+	{
+		return length;
+	}
+	
+	@Override
+	public void addNanos(double[] analogValues, int digitalMask, long spacingNanos)
+	{
+		throw new UnsupportedOperationException("StreamingPhantomRoute is read-only");
+	}
+	
+	@Override
+	public void ensureCapacity(int capacity)
+	{
+		throw new UnsupportedOperationException("StreamingPhantomRoute is read-only");
+	}
+	
+	@Override
+	public void clear()
+	{
+		throw new UnsupportedOperationException("StreamingPhantomRoute is read-only");
+	}
+	
+	@Override
+	public RouteCompactor.Result compact(double[] tolerances, RouteCompactor.Mode mode, boolean trimIdle)
+	{
+		throw new UnsupportedOperationException("StreamingPhantomRoute is read-only");
+	}
+	
+	@Override
+	public SaveResult save()
+	{
+		throw new UnsupportedOperationException("StreamingPhantomRoute is read-only");
+	}
+	
+	@Override
+	public void setFormat(RouteFormat format)
+	{
+		throw new UnsupportedOperationException("StreamingPhantomRoute is read-only");
+	}
+	
+	/**
+	 * Makes a measurement readable
+	 * @param index - measurement index
+	 */
+	private void seek(int index)
+	{
+		try
+		{
+			decoder.seek(index);
+		}
+		catch (IOException e)
+		{
+			throw new UncheckedIOException(e);
+		}
+	}
+}
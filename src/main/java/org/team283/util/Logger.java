@@ -0,0 +1,105 @@
+package org.team283.util;
+
+/**
+ * Console printouts that can be turned down or off by level
+ * 
+ * Printing is slow on the roboRIO, and building the message can create garbage, so code that runs every cycle should check
+ * isEnabled() before putting a message together:
+ * 
+ *  if (log.isEnabled(Logger.Level.DEBUG))
+ *  {
+ *      log.debug("axis " + a + ": " + value);
+ *  }
+ */
+public class Logger 
+{
+	/** From least to most talkative. A logger prints every message at or below its own level */
+	public enum Level
+	{
+		OFF,
+		ERROR,
+		WARN,
+		INFO,
+		DEBUG
+	}
+	
+	/** Printed in front of every message, e.g. "PhantomJoystick" */
+	private final String prefix;
+	
+	/** Messages above this level are dropped. Volatile so it can be changed from any thread */
+	private volatile Level level;
+	
+	/**
+	 * @param prefix - printed in front of every message
+	 * @param level - the most talkative level that still prints
+	 */
+	public Logger(String prefix, Level level)
+	{
+		this.prefix = prefix + ": ";
+		this.level = level;
+	}
+	
+	/**
+	 * @param level - the most talkative level that still prints
+	 */
+	public void setLevel(Level level)
+	{
+		this.level = level;
+	}
+	
+	/**
+	 * @return - the most talkative level that still prints
+	 */
+	public Level getLevel()
+	{
+		return level;
+	}
+	
+	/**
+	 * @param level - level of a message
+	 * @return - true if a message at that level would be printed
+	 */
+	public boolean isEnabled(Level level)
+	{
+		return level != Level.OFF && level.ordinal() <= this.level.ordinal();
+	}
+	
+	public void error(String message)
+	{
+		log(Level.ERROR, message);
+	}
+	
+	public void warn(String message)
+	{
+		log(Level.WARN, message);
+	}
+	
+	public void info(String message)
+	{
+		log(Level.INFO, message);
+	}
+	
+	public void debug(String message)
+	{
+		log(Level.DEBUG, message);
+	}
+	
+	/**
+	 * @param level - level of the message
+	 * @param message - printed if the level is enabled. Errors go to System.err, everything else to System.out
+	 */
+	public void log(Level level, String message)
+	{
+		if (isEnabled(level))
+		{
+			if (level == Level.ERROR)
+			{
+				System.err.println(prefix + message);
+			}
+			else
+			{
+				System.out.println(prefix + message);
+			}
+		}
+	}
+}
@@ -0,0 +1,110 @@
+package org.team283.auto;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Checks that a route written to a binary route file reads back the same, header and columns
+ */
+public class BinaryRouteFileTest
+{
+	/** Measurements in the written route */
+	private final static int LENGTH = 500;
+
+	/** Two axes and a POV over two joysticks, with buttons from both. Not the default, so the schema has to be written */
+	private final static ChannelSchema SCHEMA = new ChannelSchema(
+		new int[] {ChannelSchema.input(0, 0), ChannelSchema.input(1, 2)},
+		new int[] {ChannelSchema.input(0, 1), ChannelSchema.input(1, 3), ChannelSchema.input(1, 4)},
+		new int[] {ChannelSchema.input(0, 0)});
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void roundTripsSchemaAndNanosecondTimestamps() throws IOException
+	{
+		RouteData written = route(LENGTH);
+		File file = folder.newFile("round_trip." + PhantomRoute.EXTENSION);
+		long size = BinaryRouteFile.write(written, file);
+		assertEquals("Reported size", file.length(), size);
+
+		RouteData read = BinaryRouteFile.read(file);
+		assertEquals(written.robot, read.robot);
+		assertEquals(written.title, read.title);
+		assertEquals(written.description, read.description);
+		assertEquals(written.role, read.role);
+		assertEquals(written.version, read.version);
+		assertEquals(written.lastModified, read.lastModified);
+		assertEquals(SCHEMA, read.schema);
+		assertEquals(LENGTH, read.timeline.length());
+		for (int i = 0; i < LENGTH; i++)
+		{
+			//Plain columns are not quantized, so everything comes back exactly
+			assertEquals("Timestamp " + i, written.timeline.getTimestampNanos(i), read.timeline.getTimestampNanos(i));
+			assertEquals("Digital mask " + i, written.timeline.getDigitalMask(i), read.timeline.getDigitalMask(i));
+			for (int c = 0; c < SCHEMA.getAnalogChannelCount(); c++)
+			{
+				assertEquals("Analog " + c + " at " + i, written.timeline.getAnalog(c, i), read.timeline.getAnalog(c, i), 0);
+			}
+		}
+
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ))
+		{
+			BinaryRouteFile header = BinaryRouteFile.readHeader(channel);
+			assertEquals(BinaryRouteFile.FORMAT_VERSION, header.formatVersion);
+			assertFalse(header.isEncoded());
+			assertEquals("Size from the header", file.length(), header.fileSize());
+			long duration = RouteTimeline.toMillis(written.timeline.getTimestampNanos(LENGTH - 1)) - RouteTimeline.toMillis(written.timeline.getTimestampNanos(0));
+			assertEquals("Duration from the header", duration, header.getDuration());
+		}
+	}
+
+	@Test
+	public void roundTripsEmptyRoute() throws IOException
+	{
+		RouteData written = route(0);
+		File file = folder.newFile("empty." + PhantomRoute.EXTENSION);
+		BinaryRouteFile.write(written, file);
+
+		RouteData read = BinaryRouteFile.read(file);
+		assertEquals(written.title, read.title);
+		assertEquals(SCHEMA, read.schema);
+		assertEquals(0, read.timeline.length());
+	}
+
+	/**
+	 * @param length - number of measurements
+	 * @return - a route in SCHEMA, spaced a fraction of a ms past 20ms so the timestamps only survive in ns
+	 */
+	private static RouteData route(int length)
+	{
+		RouteData data = new RouteData();
+		data.robot = "napalm";
+		data.title = "round trip";
+		data.description = "\u00e9crit puis relu";
+		data.role = "driver";
+		data.version = 3;
+		data.lastModified = 1_600_000_000_000L;
+		data.schema = SCHEMA;
+		data.timeline = new RouteTimeline(SCHEMA.getAnalogChannelCount(), Math.max(length, 1));
+
+		double[] analogValues = new double[SCHEMA.getAnalogChannelCount()];
+		for (int i = 0; i < length; i++)
+		{
+			analogValues[0] = Math.sin(i / 25.0);
+			analogValues[1] = (i % 7) / 7.0 - 0.5;
+			analogValues[2] = (i % 100 < 50) ? -1 : (i / 100 % 8) * 45;
+			data.timeline.addNanos(analogValues, (i / 40) % 8, 20 * RouteTimeline.NANOS_PER_MS + 123_457 + i);
+		}
+		return data;
+	}
+}
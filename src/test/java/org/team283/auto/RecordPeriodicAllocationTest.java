@@ -0,0 +1,63 @@
+package org.team283.auto;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Checks that recordPeriodic() allocates nothing once recording has started, so a long recording never makes the robot loop wait on the garbage collector
+ * Allocation is read from the JVM's per-thread counter, which counts every object the thread creates whether or not it's ever collected
+ */
+public class RecordPeriodicAllocationTest
+{
+	/** Cycles run before measuring, so anything done once per recording is already done. Together with CYCLES this stays inside the room recordInit() makes */
+	private final static int WARMUP_CYCLES = 200;
+
+	/** Cycles measured */
+	private final static int CYCLES = 500;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void recordPeriodicDoesNotAllocate() throws InterruptedException
+	{
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+		assertTrue("This JVM can't count allocations", threads.isThreadAllocatedMemorySupported());
+		threads.setThreadAllocatedMemoryEnabled(true);
+		long thread = Thread.currentThread().getId();
+
+		//No joysticks, so every channel is sampled at rest. The sampling loop and the route's columns still run in full
+		String path = folder.getRoot().getAbsolutePath();
+		PhantomJoystick joystick = new PhantomJoystick(path, path);
+		joystick.stopWatchingRoutes();
+		joystick.disablePrintouts();
+		joystick.createRoute("allocation", "test", "", "");
+		joystick.setActiveRoute("test_allocation");
+		joystick.recordInit();
+
+		for (int i = 0; i < WARMUP_CYCLES; i++)
+		{
+			joystick.recordPeriodic();
+		}
+
+		//Reading the counter can allocate itself, so take away what two reads in a row cost
+		long overhead = -threads.getThreadAllocatedBytes(thread) + threads.getThreadAllocatedBytes(thread);
+		long before = threads.getThreadAllocatedBytes(thread);
+		for (int i = 0; i < CYCLES; i++)
+		{
+			joystick.recordPeriodic();
+		}
+		long allocated = threads.getThreadAllocatedBytes(thread) - before - overhead;
+
+		assertEquals("Bytes allocated over " + CYCLES + " recordPeriodic() calls", 0, Math.max(allocated, 0));
+		joystick.recordStop();
+		//Let the background save finish before the folder is deleted
+		joystick.flushRoutes();
+	}
+}
@@ -0,0 +1,58 @@
+package org.team283.auto;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Checks that a recorded route lasts as long as the recording did
+ * Spacing used to be kept per measurement in whole ms, so every cycle lost its fraction of a ms and a route played back faster the longer it was
+ */
+public class RecordingClockDriftTest
+{
+	/** Measurements recorded. Enough that losing even a tenth of a ms per measurement would be well past TOLERANCE_MS */
+	private final static int CYCLES = 150;
+
+	/** Time between recordPeriodic() calls in ms. Not a whole number of ms once the sleep overshoots, which is the case that used to drift */
+	private final static long CYCLE_MS = 3;
+
+	/** How far the route's duration may be from the wall clock, in ms. Covers the duration being rounded down to a whole ms */
+	private final static double TOLERANCE_MS = 1.5;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void durationMatchesWallClock() throws InterruptedException
+	{
+		String path = folder.getRoot().getAbsolutePath();
+		PhantomJoystick joystick = new PhantomJoystick(path, path);
+		joystick.stopWatchingRoutes();
+		joystick.disablePrintouts();
+		joystick.createRoute("drift", "test", "", "");
+		joystick.setActiveRoute("test_drift");
+		joystick.recordInit();
+
+		//The route's duration runs from its first measurement to its last, so time the same span
+		joystick.recordPeriodic();
+		long firstNanos = System.nanoTime();
+		for (int i = 1; i < CYCLES; i++)
+		{
+			Thread.sleep(CYCLE_MS);
+			joystick.recordPeriodic();
+		}
+		long lastNanos = System.nanoTime();
+		joystick.recordStop();
+		joystick.flushRoutes();
+
+		//Read back from the file, so the timestamps survive saving too
+		PhantomRoute saved = new PhantomRoute(new File(path, "test_drift." + PhantomRoute.EXTENSION).getAbsolutePath());
+		assertEquals(CYCLES, saved.length());
+		double wallMs = (lastNanos - firstNanos) / 1e6;
+		assertEquals("Route duration against the wall clock, in ms", wallMs, saved.getDuration(), TOLERANCE_MS);
+	}
+}
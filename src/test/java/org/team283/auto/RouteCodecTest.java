@@ -0,0 +1,127 @@
+package org.team283.auto;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+/**
+ * Checks that a timeline comes back out of RouteCodec as it went in, up to quantizing, both decoded whole and walked with a Decoder
+ */
+public class RouteCodecTest
+{
+	/** Measurements in the encoded timeline */
+	private final static int LENGTH = 1000;
+
+	/** ns in one unit of spacing, the same as BinaryRouteFile uses */
+	private final static long UNIT_NANOS = BinaryRouteFile.ENCODED_UNIT_NANOS;
+
+	/** How far a decoded axis may be from the recorded one. Quantizing rounds to the nearest 1/AXIS_SCALE */
+	private final static double AXIS_TOLERANCE = 0.5 / RouteCodec.AXIS_SCALE + 1e-12;
+
+	/** Two axes and a POV, so both kinds of analog column are encoded */
+	private final static ChannelSchema SCHEMA = new ChannelSchema(new int[] {0, 1}, new int[] {1, 2, 3, 4}, new int[] {0});
+
+	@Test
+	public void decodeMatchesEncodedTimeline() throws IOException
+	{
+		RouteTimeline timeline = timeline();
+		RouteTimeline decoded = RouteCodec.decode(encode(timeline), LENGTH, SCHEMA, UNIT_NANOS);
+
+		assertEquals(LENGTH, decoded.length());
+		for (int i = 0; i < LENGTH; i++)
+		{
+			assertMeasurement(timeline, i, decoded.getAnalog(0, i), decoded.getAnalog(1, i), decoded.getAnalog(2, i), decoded.getDigitalMask(i), decoded.getTimestampNanos(i));
+		}
+	}
+
+	@Test
+	public void decoderSeeksBackwards() throws IOException
+	{
+		RouteTimeline timeline = timeline();
+		RouteCodec.Decoder decoder = new RouteCodec.Decoder(encode(timeline), LENGTH, SCHEMA, UNIT_NANOS);
+
+		decoder.seek(LENGTH - 1);
+		assertEquals(LENGTH - 1, decoder.getIndex());
+		assertFalse("No measurements after the last", decoder.next());
+		//Still inside the window, so readable without decoding again
+		for (int i = LENGTH - RouteCodec.Decoder.WINDOW; i < LENGTH; i++)
+		{
+			assertDecoded(timeline, decoder, i);
+		}
+
+		//Far behind the window, so the decoder has to start over
+		for (int target : new int[] {LENGTH / 2, 10, 0, LENGTH / 2 + 1})
+		{
+			decoder.seek(target);
+			assertEquals(target, decoder.getIndex());
+			assertDecoded(timeline, decoder, target);
+		}
+
+		//Just behind the newest measurement, inside the window
+		decoder.seek(LENGTH / 2 + 1 - (RouteCodec.Decoder.WINDOW - 1));
+		assertEquals(LENGTH / 2 + 1, decoder.getIndex());
+		assertDecoded(timeline, decoder, LENGTH / 2 + 1 - (RouteCodec.Decoder.WINDOW - 1));
+	}
+
+	/**
+	 * @return - a timeline in SCHEMA, spaced a fraction of a ms past 20ms, with buttons held for a while and the POV moving between angles
+	 */
+	private static RouteTimeline timeline()
+	{
+		RouteTimeline timeline = new RouteTimeline(SCHEMA.getAnalogChannelCount(), LENGTH);
+		double[] analogValues = new double[SCHEMA.getAnalogChannelCount()];
+		for (int i = 0; i < LENGTH; i++)
+		{
+			analogValues[0] = Math.sin(i / 30.0);
+			analogValues[1] = (i % 200 < 100) ? 0 : -0.75 + (i % 13) / 100.0;
+			analogValues[2] = (i % 150 < 60) ? -1 : (i / 150 % 8) * 45;
+			timeline.addNanos(analogValues, (i / 70) % 16, 20 * RouteTimeline.NANOS_PER_MS + 250_321 + (i % 5) * 1_111);
+		}
+		return timeline;
+	}
+
+	/**
+	 * @param timeline - timeline to encode
+	 * @return - the stream, flipped for reading
+	 */
+	private static ByteBuffer encode(RouteTimeline timeline)
+	{
+		ByteBuffer stream = ByteBuffer.allocate(RouteCodec.maxEncodedSize(LENGTH, SCHEMA));
+		RouteCodec.encode(timeline, SCHEMA, UNIT_NANOS, stream);
+		stream.flip();
+		return stream;
+	}
+
+	/**
+	 * @param timeline - the encoded timeline
+	 * @param decoder - decoder that has the measurement in its window
+	 * @param index - measurement to check
+	 */
+	private static void assertDecoded(RouteTimeline timeline, RouteCodec.Decoder decoder, int index)
+	{
+		assertMeasurement(timeline, index, decoder.getAnalog(0, index), decoder.getAnalog(1, index), decoder.getAnalog(2, index), decoder.getDigitalMask(index), decoder.getTimestampNanos(index));
+	}
+
+	/**
+	 * Axes come back within the quantizing step, the POV and buttons exactly, and the timestamp within half a unit
+	 * @param timeline - the encoded timeline
+	 * @param index - measurement to check
+	 * @param axis0 - decoded value of the first axis
+	 * @param axis1 - decoded value of the second axis
+	 * @param pov - decoded POV angle
+	 * @param digitalMask - decoded button bitmask
+	 * @param timestampNanos - decoded timestamp
+	 */
+	private static void assertMeasurement(RouteTimeline timeline, int index, double axis0, double axis1, double pov, int digitalMask, long timestampNanos)
+	{
+		assertEquals("Axis 0 at " + index, timeline.getAnalog(0, index), axis0, AXIS_TOLERANCE);
+		assertEquals("Axis 1 at " + index, timeline.getAnalog(1, index), axis1, AXIS_TOLERANCE);
+		assertEquals("POV at " + index, timeline.getAnalog(2, index), pov, 0);
+		assertEquals("Digital mask at " + index, timeline.getDigitalMask(index), digitalMask);
+		assertEquals("Timestamp at " + index, timeline.getTimestampNanos(index), timestampNanos, UNIT_NANOS / 2.0);
+	}
+}
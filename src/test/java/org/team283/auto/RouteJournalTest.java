@@ -0,0 +1,139 @@
+package org.team283.auto;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Checks that recover() replays every whole record of a journal and cuts off the rest, like a crash partway through a group commit leaves it
+ */
+public class RouteJournalTest
+{
+	/** Measurements the route file had when the journal was started */
+	private final static int BASE_LENGTH = 5;
+
+	/** Records appended to the journal */
+	private final static int RECORDS = 20;
+
+	/** Measurements gathered before they are written out. Doesn't divide RECORDS, so close() has a partial group to commit */
+	private final static int GROUP_SIZE = 6;
+
+	/** Schema of the journaled route */
+	private final static ChannelSchema SCHEMA = ChannelSchema.DEFAULT;
+
+	/** Size of one record: i64 spacing, f64 per analog channel, i32 bitmask and i32 CRC32. See RouteJournal */
+	private final static int RECORD_SIZE = Long.BYTES + Double.BYTES * SCHEMA.getAnalogChannelCount() + Integer.BYTES + Integer.BYTES;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	/** Route file the journal belongs to. Never written, only its name is used */
+	private File routeFile;
+
+	/** The journal, holding RECORDS records */
+	private File journalFile;
+
+	/** Size of the journal's header, before the first record */
+	private long headerSize;
+
+	@Before
+	public void writeJournal() throws IOException
+	{
+		routeFile = new File(folder.getRoot(), "journaled." + PhantomRoute.EXTENSION);
+		journalFile = RouteJournal.fileFor(routeFile);
+		try (RouteJournal journal = new RouteJournal(routeFile, BASE_LENGTH, SCHEMA, GROUP_SIZE, false))
+		{
+			double[] analogValues = new double[SCHEMA.getAnalogChannelCount()];
+			for (int i = 0; i < RECORDS; i++)
+			{
+				analogValues[0] = i / (double)RECORDS;
+				journal.append(analogValues, i, spacingNanos(i));
+			}
+		}
+		headerSize = journalFile.length() - (long)RECORD_SIZE * RECORDS;
+	}
+
+	@Test
+	public void replaysWholeJournal() throws IOException
+	{
+		assertRecovered(RECORDS);
+	}
+
+	@Test
+	public void dropsRecordCutOffPartway() throws IOException
+	{
+		//A crash partway through writing the last record
+		try (RandomAccessFile file = new RandomAccessFile(journalFile, "rw"))
+		{
+			file.setLength(journalFile.length() - RECORD_SIZE / 2);
+		}
+		assertRecovered(RECORDS - 1);
+	}
+
+	@Test
+	public void stopsAtBadChecksum() throws IOException
+	{
+		//One flipped byte in the middle of a record's analog values, which the CRC has to catch
+		int badRecord = 12;
+		try (RandomAccessFile file = new RandomAccessFile(journalFile, "rw"))
+		{
+			long position = headerSize + (long)RECORD_SIZE * badRecord + Long.BYTES + 3;
+			file.seek(position);
+			int value = file.read();
+			file.seek(position);
+			file.write(value ^ 0x40);
+		}
+		assertRecovered(badRecord);
+	}
+
+	/**
+	 * Recovers the journal onto a route that has measurements past the base, which should be replaced
+	 * @param expected - number of records that should be replayed
+	 * @throws IOException - if the journal can't be read
+	 */
+	private void assertRecovered(int expected) throws IOException
+	{
+		RouteTimeline timeline = new RouteTimeline(SCHEMA.getAnalogChannelCount(), BASE_LENGTH + RECORDS);
+		double[] analogValues = new double[SCHEMA.getAnalogChannelCount()];
+		analogValues[0] = -1;
+		for (int i = 0; i < BASE_LENGTH + 3; i++)
+		{
+			timeline.addNanos(analogValues, 0, 20 * RouteTimeline.NANOS_PER_MS);
+		}
+
+		assertEquals("Records replayed", expected, RouteJournal.recover(routeFile, timeline, SCHEMA));
+		assertEquals(BASE_LENGTH + expected, timeline.length());
+		for (int i = 0; i < expected; i++)
+		{
+			int index = BASE_LENGTH + i;
+			assertEquals("Analog at " + index, i / (double)RECORDS, timeline.getAnalog(0, index), 0);
+			assertEquals("Digital mask at " + index, i, timeline.getDigitalMask(index));
+			assertEquals("Spacing at " + index, spacingNanos(i), timeline.getSpacingNanos(index));
+		}
+		assertEquals("Journal cut back to its last good record", headerSize + (long)RECORD_SIZE * expected, journalFile.length());
+
+		//Recovering again finds the same records and nothing past them
+		RouteTimeline again = new RouteTimeline(SCHEMA.getAnalogChannelCount(), BASE_LENGTH + RECORDS);
+		for (int i = 0; i < BASE_LENGTH; i++)
+		{
+			again.addNanos(analogValues, 0, 20 * RouteTimeline.NANOS_PER_MS);
+		}
+		assertEquals("Records replayed the second time", expected, RouteJournal.recover(routeFile, again, SCHEMA));
+	}
+
+	/**
+	 * @param record - record index
+	 * @return - spacing journaled with that record. A fraction of a ms past 20ms, so ns have to survive
+	 */
+	private static long spacingNanos(int record)
+	{
+		return 20 * RouteTimeline.NANOS_PER_MS + 31_337 * record;
+	}
+}